@@ -0,0 +1,125 @@
+package com.cisco.josouthe.benchmark;
+
+import com.cisco.josouthe.ConfigEndpoint;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.smi.UdpAddress;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/*
+ * Stands up many simulated agents in one process, all on loopback and all serving the same SimulatedMib, reading
+ * through a few selector threads and delaying responses on a shared scheduler. endpoints() and writeConfig() give
+ * the matching extension configuration, so SNMPMonitor or the session manager can be pointed straight at them.
+ */
+public class AgentSimulator implements Closeable {
+
+    public static class Settings {
+        public int agents = 1;
+        public String host = "127.0.0.1";
+        public int basePort = 0; //0 lets every agent pick a free port
+        public String version = "2";
+        public String communityName = "public";
+        public String securityName = "simulator", authProtocol = "hmac384sha512", authPassphrase = "simulatorAuth", privProtocol = "aes256", privPassphrase = "simulatorPriv";
+        public long latencyMillis = 0, latencyJitterMillis = 0;
+        public double lossRate = 0;
+        public int maxVarbinds = 0; //0 is unlimited, GETs with more get tooBig and GETBULKs are cut down
+        public long restartIntervalMillis = 0;
+        public int selectorThreads = 2, schedulerThreads = 2;
+
+        public boolean isV3() { return "3".equals(version); }
+    }
+
+    private final Settings settings;
+    private final List<SimulatedAgent> agents;
+    private final List<SimulatorTransport.SelectorLoop> selectorLoops = new ArrayList<>();
+    private final ScheduledExecutorService scheduler;
+
+    public AgentSimulator( SimulatedMib mib, Settings settings ) throws IOException {
+        this.settings = settings;
+        this.agents = new ArrayList<>(settings.agents);
+        SecurityProtocols.getInstance().addDefaultProtocols();
+        this.scheduler = Executors.newScheduledThreadPool(Math.max(1, settings.schedulerThreads), runnable -> {
+            Thread thread = new Thread(runnable, "SimulatorScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for( int i = 0; i < Math.max(1, settings.selectorThreads); i++ ) selectorLoops.add(new SimulatorTransport.SelectorLoop("SimulatorSelector-"+ i));
+        InetAddress host = InetAddress.getByName(settings.host);
+        try {
+            for( int i = 0; i < settings.agents; i++ ) {
+                UdpAddress address = new UdpAddress(host, settings.basePort == 0 ? 0 : settings.basePort + i);
+                agents.add(new SimulatedAgent(i, address, mib, settings, selectorLoops.get(i % selectorLoops.size()), scheduler));
+            }
+        } catch (IOException ioException) {
+            close();
+            throw ioException;
+        }
+    }
+
+    public List<SimulatedAgent> getAgents() { return agents; }
+
+    public long getRequests() {
+        long requests = 0;
+        for( SimulatedAgent agent : agents ) requests += agent.getRequests();
+        return requests;
+    }
+
+    public long getDropped() {
+        long dropped = 0;
+        for( SimulatedAgent agent : agents ) dropped += agent.getDropped();
+        return dropped;
+    }
+
+    //one endpoint per agent, polling the given oids and walks
+    public ConfigEndpoint[] endpoints( Map<String,String> oids, List<ConfigEndpoint.Walk> walks, Map<String, ConfigEndpoint.OIDOptions> oidOptions, int maxVarbindsPerPDU ) {
+        ConfigEndpoint[] endpoints = new ConfigEndpoint[agents.size()];
+        for( int i = 0; i < endpoints.length; i++ ) {
+            ConfigEndpoint endpoint = new ConfigEndpoint();
+            endpoint.name = "Simulated "+ i;
+            ConfigEndpoint.SNMPEndpoint snmpEndpoint = endpoint.snmpEndpoint;
+            snmpEndpoint.targetAddress = agents.get(i).getTargetAddress();
+            snmpEndpoint.version = settings.version;
+            snmpEndpoint.communityName = settings.communityName;
+            if( settings.isV3() ) {
+                snmpEndpoint.securityName = settings.securityName;
+                snmpEndpoint.authProtocol = settings.authProtocol;
+                snmpEndpoint.authPassphrase = settings.authPassphrase;
+                snmpEndpoint.privProtocol = settings.privProtocol;
+                snmpEndpoint.privPassphrase = settings.privPassphrase;
+            }
+            snmpEndpoint.maxVarbindsPerPDU = maxVarbindsPerPDU;
+            snmpEndpoint.oids = new HashMap<>(oids);
+            snmpEndpoint.walks = new ArrayList<>(walks);
+            snmpEndpoint.oidOptions = new HashMap<>(oidOptions);
+            endpoints[i] = endpoint;
+        }
+        return endpoints;
+    }
+
+    public void writeConfig( File file, ConfigEndpoint[] endpoints ) throws IOException {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (Writer writer = new FileWriter(file)) {
+            gson.toJson(endpoints, writer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for( SimulatedAgent agent : agents ) agent.close();
+        for( SimulatorTransport.SelectorLoop selectorLoop : selectorLoops ) selectorLoop.close();
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,31 @@
+package com.cisco.josouthe.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Same command line as the JMH main, but unless told otherwise every run uses the gc profiler and writes its results
+ * to jmh-result.json, so allocation rates are always recorded and runs from different versions can be diffed
+ */
+public class BenchmarkMain {
+
+    public static void main( String[] args ) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if( commandLine.shouldHelp() ) {
+            commandLine.showHelp();
+            return;
+        }
+        if( commandLine.shouldList() ) {
+            new Runner(commandLine).list();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if( commandLine.getProfilers().isEmpty() ) options.addProfiler(GCProfiler.class);
+        if( !commandLine.getResultFormat().hasValue() ) options.resultFormat(ResultFormatType.JSON);
+        new Runner(options.build()).run();
+    }
+}
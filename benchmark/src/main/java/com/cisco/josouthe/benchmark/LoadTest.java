@@ -0,0 +1,160 @@
+package com.cisco.josouthe.benchmark;
+
+import com.cisco.josouthe.ConfigEndpoint;
+import com.cisco.josouthe.SNMPMonitor;
+import com.singularity.ee.agent.systemagent.api.TaskExecutionContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Runs SNMPMonitor.execute() against a simulator full of agents, one call per cycle, so everything the extension does
+ * in a run is under load: request limiter and deadline, writer caching and change suppression, rate state, sharding
+ * and the collector metrics, which are read back to print how many endpoints finished in time and how long they
+ * took. Raise agents until cycles stop finishing to find the endpoint ceiling of a box. Arguments are name=value:
+ *
+ *   agents=1000 version=2|3 oids=20 interfaces=24 rates=true write=always|change maxVarbindsPerPDU=10
+ *   latencyMillis=0 latencyJitterMillis=0 lossRate=0 maxVarbinds=0 restartSecs=0 selectorThreads=2
+ *   cycles=5 intervalSecs=60
+ *   configFile=file.json serve=true   write the endpoints for a real machine agent and keep the agents running
+ *
+ * Any other argument is passed to execute() as a task argument, e.g. maxRequestsInFlight=200, snmpDispatcherThreads=8,
+ * shardMembers=a,b shardMember=a. executionTimeoutInSecs defaults to intervalSecs.
+ */
+public class LoadTest {
+
+    public static void main( String[] args ) throws Exception {
+        Map<String,String> arguments = new HashMap<>();
+        for( String arg : args ) {
+            int equals = arg.indexOf('=');
+            if( equals > 0 ) arguments.put(arg.substring(0, equals), arg.substring(equals+1));
+        }
+        AgentSimulator.Settings settings = new AgentSimulator.Settings();
+        settings.agents = getInt(arguments, "agents", 1000);
+        settings.version = arguments.getOrDefault("version", "2");
+        settings.latencyMillis = getInt(arguments, "latencyMillis", 0);
+        settings.latencyJitterMillis = getInt(arguments, "latencyJitterMillis", 0);
+        settings.lossRate = Double.parseDouble(arguments.getOrDefault("lossRate", "0"));
+        settings.maxVarbinds = getInt(arguments, "maxVarbinds", 0);
+        settings.restartIntervalMillis = getInt(arguments, "restartSecs", 0) * 1000L;
+        settings.selectorThreads = getInt(arguments, "selectorThreads", 2);
+        int scalars = getInt(arguments, "oids", 20), interfaces = getInt(arguments, "interfaces", 24);
+        boolean rates = !"false".equals(arguments.get("rates"));
+
+        Map<String,String> oids = new HashMap<>();
+        Map<String, ConfigEndpoint.OIDOptions> oidOptions = new HashMap<>();
+        String write = arguments.getOrDefault("write", "always");
+        oids.put(SimulatedMib.SYS_UP_TIME, "sysUpTime");
+        oids.put(SimulatedMib.LOAD_AVERAGE_1, "1 minute load average");
+        for( int i = 1; i <= scalars; i++ ) {
+            oids.put(SimulatedMib.SCALAR_PREFIX + i +".0", "Scalar "+ i);
+            oidOptions.put(SimulatedMib.SCALAR_PREFIX + i +".0", option(rates && i % 2 == 1, write));
+        }
+        List<ConfigEndpoint.Walk> walks = new ArrayList<>();
+        if( interfaces > 0 ) {
+            ConfigEndpoint.Walk walk = new ConfigEndpoint.Walk();
+            walk.name = "Interfaces";
+            walk.labelOid = SimulatedMib.IF_NAME;
+            walk.columns.put(SimulatedMib.IF_HC_IN_OCTETS, "ifHCInOctets");
+            walk.columns.put(SimulatedMib.IF_HC_OUT_OCTETS, "ifHCOutOctets");
+            walks.add(walk);
+            oidOptions.put(SimulatedMib.IF_HC_IN_OCTETS, option(rates, write));
+            oidOptions.put(SimulatedMib.IF_HC_OUT_OCTETS, option(rates, write));
+        }
+
+        long started = System.currentTimeMillis();
+        try (AgentSimulator simulator = new AgentSimulator(SimulatedMib.standard(scalars, interfaces), settings)) {
+            System.out.printf("Started %d v%s agents in %d ms%n", settings.agents, settings.version, System.currentTimeMillis() - started);
+            ConfigEndpoint[] endpoints = simulator.endpoints(oids, walks, oidOptions, getInt(arguments, "maxVarbindsPerPDU", 10));
+            if( arguments.containsKey("configFile") ) {
+                simulator.writeConfig(new File(arguments.get("configFile")), endpoints);
+                System.out.printf("Wrote %d endpoints to %s%n", endpoints.length, arguments.get("configFile"));
+                if( "true".equals(arguments.get("serve")) ) {
+                    System.out.println("Serving until killed");
+                    Thread.sleep(Long.MAX_VALUE);
+                }
+                return;
+            }
+            run(simulator, endpoints, arguments);
+        }
+        System.exit(0);
+    }
+
+    private static final String[] SIMULATOR_ARGUMENTS = { "agents", "version", "oids", "interfaces", "rates", "write", "maxVarbindsPerPDU",
+            "latencyMillis", "latencyJitterMillis", "lossRate", "maxVarbinds", "restartSecs", "selectorThreads", "cycles", "intervalSecs" };
+
+    private static void run( AgentSimulator simulator, ConfigEndpoint[] endpoints, Map<String,String> arguments ) throws Exception {
+        int cycles = getInt(arguments, "cycles", 5);
+        long interval = getInt(arguments, "intervalSecs", 60) * 1000L;
+        File taskDir = Files.createTempDirectory("snmp-loadtest").toFile();
+        taskDir.deleteOnExit();
+        File configFile = new File(taskDir, "loadtest-config.json");
+        configFile.deleteOnExit();
+        simulator.writeConfig(configFile, endpoints);
+
+        Map<String,String> taskArguments = new HashMap<>(arguments);
+        for( String name : SIMULATOR_ARGUMENTS ) taskArguments.remove(name);
+        taskArguments.put("configFile", configFile.getName());
+        taskArguments.putIfAbsent("executionTimeoutInSecs", Long.toString(interval / 1000));
+        taskArguments.putIfAbsent("maxCounterStates", Integer.toString(Math.max(100000, endpoints.length * 100)));
+        taskArguments.putIfAbsent("maxCachedMetrics", Integer.toString(Math.max(200000, endpoints.length * 200)));
+        Logger logger = LogManager.getFormatterLogger(LoadTest.class);
+        TaskExecutionContext context = new TaskExecutionContext() {
+            public Logger getLogger() { return logger; }
+            public String getTaskDir() { return taskDir.getPath(); }
+        };
+        RecordingMonitor monitor = new RecordingMonitor();
+
+        for( int cycle = 0; cycle < cycles; cycle++ ) {
+            long cycleStart = System.currentTimeMillis();
+            long requestsBefore = simulator.getRequests();
+            monitor.collector.clear();
+            monitor.execute(taskArguments, context);
+            long elapsed = System.currentTimeMillis() - cycleStart;
+            System.out.printf("cycle %d: %s/%s endpoints polled in %d ms, %s late, %s unreachable, %s metrics written, %s suppressed, %d requests, %s timeouts, %s tooBig splits, endpoint ms p50 %s p95 %s p99 %s max %s%n",
+                    cycle, monitor.get("Endpoints|Polled"), monitor.get("Endpoints|Configured"), elapsed, monitor.get("Endpoints|Late"),
+                    monitor.get("Endpoints|Unreachable"), monitor.get("Metrics Written"), monitor.get("Metrics Suppressed"),
+                    simulator.getRequests() - requestsBefore, monitor.get("SNMP|Timeouts"), monitor.get("SNMP|TooBig Splits"),
+                    monitor.get("Poll Time (ms)|50th Percentile"), monitor.get("Poll Time (ms)|95th Percentile"),
+                    monitor.get("Poll Time (ms)|99th Percentile"), monitor.get("Poll Time (ms)|Max"));
+            long sleep = interval - (System.currentTimeMillis() - cycleStart);
+            if( cycle +1 < cycles && sleep > 0 ) Thread.sleep(sleep);
+        }
+        System.out.printf("simulator dropped %d requests%n", simulator.getDropped());
+        configFile.delete();
+    }
+
+    //keeps the collector metrics of the last execute() for the summary line, every write still goes to the monitor
+    private static class RecordingMonitor extends SNMPMonitor {
+        private final Map<String, Object> collector = new ConcurrentHashMap<>();
+
+        @Override
+        public void printMetric( String metricName, Object metricValue, String aggregation, String timeRollup, String cluster ) {
+            if( metricName.startsWith("Collector|") ) collector.put(metricName.substring("Collector|".length()), metricValue);
+            super.printMetric(metricName, metricValue, aggregation, timeRollup, cluster);
+        }
+
+        private Object get( String name ) {
+            return collector.getOrDefault(name, "-");
+        }
+    }
+
+    private static ConfigEndpoint.OIDOptions option( boolean rate, String write ) {
+        ConfigEndpoint.OIDOptions option = new ConfigEndpoint.OIDOptions();
+        if( rate ) option.mode = "rate";
+        option.write = write;
+        return option;
+    }
+
+    private static int getInt( Map<String,String> arguments, String name, int defaultValue ) {
+        String value = arguments.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+}
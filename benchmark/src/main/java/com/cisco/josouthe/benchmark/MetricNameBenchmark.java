@@ -0,0 +1,82 @@
+package com.cisco.josouthe.benchmark;
+
+import com.cisco.josouthe.ConfigEndpoint;
+import com.cisco.josouthe.CounterStore;
+import com.cisco.josouthe.PollPlan;
+import com.cisco.josouthe.SNMPAPI;
+import com.cisco.josouthe.SNMPSessionManager;
+import com.singularity.ee.agent.systemagent.api.exception.TaskExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.snmp4j.smi.OID;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Resolving response OIDs to metric names and paths, from the String API and from parsed OIDs as the poller does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricNameBenchmark {
+
+    @Param({"10", "1000"})
+    public int oidCount;
+
+    private SNMPSessionManager sessionManager;
+    private SNMPAPI session;
+    private PollPlan plan;
+    private String[] oidStrings;
+    private OID[] oids;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, TaskExecutionException {
+        ConfigEndpoint endpoint = new ConfigEndpoint();
+        endpoint.name = "bench";
+        endpoint.snmpEndpoint.targetAddress = "udp:127.0.0.1/16161"; //v2c sessions do not contact the agent when created
+        endpoint.snmpEndpoint.oids = new HashMap<>();
+        oidStrings = new String[oidCount];
+        oids = new OID[oidCount];
+        for( int i = 0; i < oidCount; i++ ) {
+            oidStrings[i] = SimulatedMib.SCALAR_PREFIX + (i+1) +".0";
+            oids[i] = new OID(oidStrings[i]);
+            endpoint.snmpEndpoint.oids.put(oidStrings[i], "oid "+ (i+1));
+        }
+        sessionManager = new SNMPSessionManager(1, new CounterStore(10000, 10));
+        sessionManager.setMetricPrefix("Custom Metrics|SNMP Monitor|");
+        session = sessionManager.getSession(endpoint, null);
+        plan = session.getPlan();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sessionManager.close();
+    }
+
+    @Benchmark
+    public void getOIDMetricName( Blackhole blackhole ) {
+        for( String oid : oidStrings ) blackhole.consume(session.getOIDMetricName(oid));
+    }
+
+    @Benchmark
+    public void planLookup( Blackhole blackhole ) {
+        for( OID oid : oids ) blackhole.consume(plan.getEntry(oid).getMetricPath());
+    }
+}
@@ -0,0 +1,88 @@
+package com.cisco.josouthe.benchmark;
+
+import com.cisco.josouthe.analytics.AnalyticsSchemaException;
+import com.cisco.josouthe.analytics.GzipRequestBody;
+import com.cisco.josouthe.analytics.Schema;
+import com.cisco.josouthe.analytics.SchemaRequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Serializing a publish batch, per event with Schema.getJSON and streamed the way Analytics.insertSchema and the
+ * publisher send it, plain and gzipped
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchemaSerializationBenchmark {
+
+    @Param({"1", "1000"})
+    public int events;
+
+    private Schema schema;
+    private List<Map<String,String>> data;
+
+    @Setup
+    public void setup() throws AnalyticsSchemaException {
+        schema = new Schema("snmp_bench");
+        schema.addField("endpointName", "");
+        schema.addField("rowLabel", "");
+        schema.addField("pollTime", new Date());
+        schema.addField("ifHCInOctets", 0);
+        schema.addField("ifHCOutOctets", 0);
+        schema.addField("load", 0.0d);
+        data = new ArrayList<>(events);
+        for( int i = 0; i < events; i++ ) {
+            Map<String,String> event = new HashMap<>();
+            event.put("endpointName", "router \"core\" "+ (i % 10));
+            event.put("rowLabel", "GigabitEthernet0/"+ i);
+            event.put("pollTime", String.valueOf(System.currentTimeMillis()));
+            event.put("ifHCInOctets", String.valueOf(i * 123456789L));
+            event.put("ifHCOutOctets", String.valueOf(i * 7L));
+            event.put("load", "0.52");
+            data.add(event);
+        }
+    }
+
+    @Benchmark
+    public void getJSON( Blackhole blackhole ) throws AnalyticsSchemaException {
+        for( Map<String,String> event : data ) blackhole.consume(schema.getJSON(event));
+    }
+
+    @Benchmark
+    public void streamed() throws IOException {
+        BufferedSink sink = Okio.buffer(Okio.blackhole());
+        new SchemaRequestBody(schema, data).writeTo(sink);
+        sink.close();
+    }
+
+    @Benchmark
+    public void streamedGzip() throws IOException {
+        BufferedSink sink = Okio.buffer(Okio.blackhole());
+        new GzipRequestBody(new SchemaRequestBody(schema, data)).writeTo(sink);
+        sink.close();
+    }
+}
@@ -0,0 +1,193 @@
+package com.cisco.josouthe.benchmark;
+
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.MessageException;
+import org.snmp4j.PDU;
+import org.snmp4j.ScopedPDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.fluent.TargetBuilder;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmUser;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * One virtual v2c or v3 agent on its own udp port, answering GET, GETNEXT and GETBULK from a shared SimulatedMib
+ * with the faults from the simulator settings: response latency, lost requests, tooBig when a response would
+ * carry more than maxVarbinds, and restarts that reset sysUpTime, the counters and, for v3, bump engine boots.
+ */
+public class SimulatedAgent implements CommandResponder, Closeable {
+    private final int index;
+    private final SimulatedMib mib;
+    private final AgentSimulator.Settings settings;
+    private final ScheduledExecutorService scheduler;
+    private final Snmp snmp;
+    private final SimulatorTransport transport;
+    private final OctetString community;
+    private final USM usm;
+    private final OctetString engineID;
+    private volatile long bootTime = System.currentTimeMillis();
+    private final AtomicLong requests = new AtomicLong(), dropped = new AtomicLong(), restarts = new AtomicLong();
+
+    public SimulatedAgent( int index, UdpAddress address, SimulatedMib mib, AgentSimulator.Settings settings,
+                           SimulatorTransport.SelectorLoop selectorLoop, ScheduledExecutorService scheduler ) throws IOException {
+        this.index = index;
+        this.mib = mib;
+        this.settings = settings;
+        this.scheduler = scheduler;
+        this.community = new OctetString(settings.communityName);
+        this.transport = new SimulatorTransport(address, selectorLoop);
+        MessageDispatcherImpl dispatcher = new MessageDispatcherImpl();
+        if( settings.isV3() ) {
+            this.engineID = new OctetString(MPv3.createLocalEngineID(new OctetString("simulator-"+ index)));
+            this.usm = new USM(SecurityProtocols.getInstance(), engineID, 0);
+            this.usm.addUser(new UsmUser(new OctetString(settings.securityName),
+                    settings.authPassphrase == null ? null : TargetBuilder.AuthProtocol.valueOf(settings.authProtocol).getProtocolID(),
+                    settings.authPassphrase == null ? null : new OctetString(settings.authPassphrase),
+                    settings.privPassphrase == null ? null : TargetBuilder.PrivProtocol.valueOf(settings.privProtocol).getProtocolID(),
+                    settings.privPassphrase == null ? null : new OctetString(settings.privPassphrase)));
+            dispatcher.addMessageProcessingModel(new MPv3(usm));
+        } else {
+            this.engineID = null;
+            this.usm = null;
+            dispatcher.addMessageProcessingModel(new MPv2c());
+        }
+        this.snmp = new Snmp(dispatcher, transport);
+        this.snmp.addCommandResponder(this);
+        this.snmp.listen();
+    }
+
+    public int getIndex() { return index; }
+    public UdpAddress getAddress() { return transport.getListenAddress(); }
+    public String getTargetAddress() { return "udp:"+ getAddress(); }
+    public long getRequests() { return requests.get(); }
+    public long getDropped() { return dropped.get(); }
+    public long getRestarts() { return restarts.get(); }
+
+    public void restart() {
+        bootTime = System.currentTimeMillis();
+        restarts.incrementAndGet();
+        if( usm != null ) usm.setLocalEngine(engineID, usm.getEngineBoots() +1, 0);
+    }
+
+    private long uptime() {
+        long now = System.currentTimeMillis();
+        if( settings.restartIntervalMillis > 0 && now - bootTime >= settings.restartIntervalMillis ) restart();
+        return now - bootTime;
+    }
+
+    @Override
+    public <A extends Address> void processPdu( CommandResponderEvent<A> event ) {
+        PDU request = event.getPDU();
+        if( request == null ) return;
+        event.setProcessed(true);
+        if( !settings.isV3() && !community.equals(new OctetString(event.getSecurityName())) ) return; //wrong community, real agents stay silent too
+        requests.incrementAndGet();
+        if( settings.lossRate > 0 && ThreadLocalRandom.current().nextDouble() < settings.lossRate ) {
+            dropped.incrementAndGet();
+            return;
+        }
+        PDU response = respond(request, uptime());
+        if( response == null ) return;
+        long delay = settings.latencyMillis;
+        if( settings.latencyJitterMillis > 0 ) delay += ThreadLocalRandom.current().nextLong(settings.latencyJitterMillis +1);
+        if( delay <= 0 ) {
+            send(event, response);
+        } else {
+            scheduler.schedule(() -> send(event, response), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private PDU respond( PDU request, long uptime ) {
+        PDU response;
+        if( request instanceof ScopedPDU ) {
+            ScopedPDU scopedResponse = new ScopedPDU();
+            scopedResponse.setContextName(((ScopedPDU) request).getContextName());
+            scopedResponse.setContextEngineID(((ScopedPDU) request).getContextEngineID());
+            response = scopedResponse;
+        } else {
+            response = new PDU();
+        }
+        response.setType(PDU.RESPONSE);
+        response.setRequestID(request.getRequestID());
+        switch (request.getType()) {
+            case PDU.GET: {
+                for( VariableBinding binding : request.getVariableBindings() ) {
+                    Variable variable = mib.get(binding.getOid(), uptime);
+                    response.add(new VariableBinding(binding.getOid(), variable == null ? Null.noSuchObject : variable));
+                }
+                break;
+            }
+            case PDU.GETNEXT: {
+                for( VariableBinding binding : request.getVariableBindings() ) response.add(next(binding.getOid(), uptime));
+                break;
+            }
+            case PDU.GETBULK: {
+                List<OID> current = new ArrayList<>();
+                for( VariableBinding binding : request.getVariableBindings() ) current.add(binding.getOid());
+                int repetitions = Math.max(1, request.getMaxRepetitions());
+                if( settings.maxVarbinds > 0 ) repetitions = Math.max(1, Math.min(repetitions, settings.maxVarbinds / Math.max(1, current.size())));
+                for( int repetition = 0; repetition < repetitions; repetition++ ) {
+                    for( int column = 0; column < current.size(); column++ ) {
+                        VariableBinding binding = next(current.get(column), uptime);
+                        response.add(binding);
+                        current.set(column, binding.getOid());
+                    }
+                }
+                return response;
+            }
+            default:
+                return null;
+        }
+        if( settings.maxVarbinds > 0 && response.size() > settings.maxVarbinds ) {
+            //a real agent answers tooBig with no varbinds at all, the poller has nothing to fall back on but splitting
+            response.setVariableBindings(Collections.<VariableBinding>emptyList());
+            response.setErrorStatus(PDU.tooBig);
+            response.setErrorIndex(0);
+        }
+        return response;
+    }
+
+    private VariableBinding next( OID oid, long uptime ) {
+        Map.Entry<OID, Variable> entry = mib.next(oid, uptime);
+        if( entry == null ) return new VariableBinding(oid, Null.endOfMibView);
+        return new VariableBinding(entry.getKey(), entry.getValue());
+    }
+
+    private <A extends Address> void send( CommandResponderEvent<A> event, PDU response ) {
+        try {
+            event.getMessageDispatcher().returnResponsePdu(event.getMessageProcessingModel(), event.getSecurityModel(),
+                    event.getSecurityName(), event.getSecurityLevel(), response, event.getMaxSizeResponsePDU(),
+                    event.getStateReference(), new StatusInformation());
+        } catch (MessageException messageException) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        snmp.close();
+    }
+}
@@ -0,0 +1,114 @@
+package com.cisco.josouthe.benchmark;
+
+import org.snmp4j.smi.Counter32;
+import org.snmp4j.smi.Counter64;
+import org.snmp4j.smi.Gauge32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.Variable;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/*
+ * OID tree served by simulated agents, built once and shared by all of them. Counters are not stored, they are
+ * worked out from the agent's uptime, so thousands of agents cost no per agent state and a restart resets them.
+ */
+public class SimulatedMib {
+    public static final String SYS_DESCR = "1.3.6.1.2.1.1.1.0", SYS_UP_TIME = "1.3.6.1.2.1.1.3.0";
+    public static final String SCALAR_PREFIX = "1.3.6.1.4.1.9999.1.";
+    public static final String LOAD_AVERAGE_1 = "1.3.6.1.4.1.2021.10.1.3.1";
+    public static final String IF_NAME = "1.3.6.1.2.1.31.1.1.1.1", IF_HC_IN_OCTETS = "1.3.6.1.2.1.31.1.1.1.6", IF_HC_OUT_OCTETS = "1.3.6.1.2.1.31.1.1.1.10";
+    private final NavigableMap<OID, Object> values = new TreeMap<>();
+
+    /*
+    sysDescr, sysUpTime and a load average string, scalars alternately Counter32 and Gauge32 under SCALAR_PREFIX.<i>.0
+    and an ifXTable with interfaces rows of ifName, ifHCInOctets and ifHCOutOctets
+     */
+    public static SimulatedMib standard( int scalars, int interfaces ) {
+        SimulatedMib mib = new SimulatedMib()
+                .value(SYS_DESCR, new OctetString("SNMP Monitor simulated agent"))
+                .uptime(SYS_UP_TIME)
+                .value(LOAD_AVERAGE_1, new OctetString("0.52"));
+        for( int i = 1; i <= scalars; i++ ) {
+            if( i % 2 == 0 ) {
+                mib.value(SCALAR_PREFIX + i +".0", new Gauge32(i));
+            } else {
+                mib.counter32(SCALAR_PREFIX + i +".0", i * 1000L, i);
+            }
+        }
+        mib.table(interfaces);
+        return mib;
+    }
+
+    public SimulatedMib value( String oid, Variable variable ) {
+        values.put(new OID(oid), variable);
+        return this;
+    }
+
+    public SimulatedMib counter32( String oid, long base, long perSecond ) {
+        values.put(new OID(oid), new Counter(Counter.COUNTER32, base, perSecond));
+        return this;
+    }
+
+    public SimulatedMib counter64( String oid, long base, long perSecond ) {
+        values.put(new OID(oid), new Counter(Counter.COUNTER64, base, perSecond));
+        return this;
+    }
+
+    public SimulatedMib uptime( String oid ) {
+        values.put(new OID(oid), new Counter(Counter.TIMETICKS, 0, 100));
+        return this;
+    }
+
+    public SimulatedMib table( int rows ) {
+        for( int i = 1; i <= rows; i++ ) {
+            value(IF_NAME +"."+ i, new OctetString("eth"+ i));
+            counter64(IF_HC_IN_OCTETS +"."+ i, i * 1000000L, i * 125000L);
+            counter64(IF_HC_OUT_OCTETS +"."+ i, i * 1000L, i * 12500L);
+        }
+        return this;
+    }
+
+    public int size() { return values.size(); }
+
+    public Variable get( OID oid, long uptimeMillis ) {
+        return resolve(values.get(oid), uptimeMillis);
+    }
+
+    //the next OID after oid with its value, null at the end of the tree
+    public Map.Entry<OID, Variable> next( OID oid, long uptimeMillis ) {
+        Map.Entry<OID, Object> entry = values.higherEntry(oid);
+        if( entry == null ) return null;
+        return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), resolve(entry.getValue(), uptimeMillis));
+    }
+
+    private static Variable resolve( Object value, long uptimeMillis ) {
+        if( value instanceof Counter ) return ((Counter) value).value(uptimeMillis);
+        return (Variable) value;
+    }
+
+    private static class Counter {
+        private static final int COUNTER32 = 0, COUNTER64 = 1, TIMETICKS = 2;
+        private final int type;
+        private final long base, perSecond;
+
+        private Counter( int type, long base, long perSecond ) {
+            this.type = type;
+            this.base = base;
+            this.perSecond = perSecond;
+        }
+
+        private Variable value( long uptimeMillis ) {
+            long value = base + perSecond * uptimeMillis / 1000;
+            switch (type) {
+                case COUNTER32: return new Counter32(value & 0xffffffffL);
+                case COUNTER64: return new Counter64(value);
+                default: return new TimeTicks(value & 0xffffffffL);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.cisco.josouthe.benchmark;
+
+import org.snmp4j.TransportStateReference;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.UdpTransportMapping;
+import org.snmp4j.util.WorkerTask;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Non blocking udp transport for simulated agents. DefaultUdpTransportMapping needs a listen thread per socket,
+ * here a few SelectorLoop threads read for all agents so thousands of ports fit in one process.
+ */
+public class SimulatorTransport extends UdpTransportMapping {
+    private final SelectorLoop selectorLoop;
+    private volatile DatagramChannel channel;
+
+    public SimulatorTransport( UdpAddress address, SelectorLoop selectorLoop ) {
+        super(address);
+        this.selectorLoop = selectorLoop;
+    }
+
+    @Override
+    public synchronized void listen() throws IOException {
+        if( channel != null ) return;
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(new InetSocketAddress(udpAddress.getInetAddress(), udpAddress.getPort()));
+        InetSocketAddress bound = (InetSocketAddress) channel.getLocalAddress();
+        udpAddress = new UdpAddress(bound.getAddress(), bound.getPort());
+        selectorLoop.register(this);
+    }
+
+    @Override
+    public boolean isListening() {
+        DatagramChannel current = channel;
+        return current != null && current.isOpen();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if( channel != null ) channel.close();
+        channel = null;
+    }
+
+    @Override
+    public void sendMessage( UdpAddress targetAddress, byte[] message, TransportStateReference tmStateReference, long timeoutMillis, int maxRetries ) throws IOException {
+        DatagramChannel current = channel;
+        if( current == null ) return;
+        current.send(ByteBuffer.wrap(message), new InetSocketAddress(targetAddress.getInetAddress(), targetAddress.getPort()));
+    }
+
+    @Override
+    protected WorkerTask getListenerWorkerTask() {
+        return null;
+    }
+
+    private void read( ByteBuffer buffer ) throws IOException {
+        DatagramChannel current = channel;
+        if( current == null ) return;
+        while( true ) {
+            buffer.clear();
+            InetSocketAddress from = (InetSocketAddress) current.receive(buffer);
+            if( from == null ) return;
+            buffer.flip();
+            byte[] message = new byte[buffer.remaining()];
+            buffer.get(message);
+            UdpAddress peer = new UdpAddress(from.getAddress(), from.getPort());
+            fireProcessMessage(peer, ByteBuffer.wrap(message),
+                    new TransportStateReference(this, peer, null, SecurityLevel.undefined, SecurityLevel.undefined, false, current));
+        }
+    }
+
+    public static class SelectorLoop implements Runnable, Closeable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<SimulatorTransport> registrations = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        private volatile boolean running = true;
+
+        public SelectorLoop( String name ) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private void register( SimulatorTransport transport ) {
+            registrations.add(transport);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while( running ) {
+                    selector.select();
+                    SimulatorTransport transport;
+                    while( (transport = registrations.poll()) != null ) {
+                        DatagramChannel channel = transport.channel;
+                        if( channel != null ) channel.register(selector, SelectionKey.OP_READ, transport);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while( keys.hasNext() ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if( key.isValid() && key.isReadable() ) ((SimulatorTransport) key.attachment()).read(buffer);
+                        } catch (IOException ioException) {
+                            key.cancel();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException exception) {
+                //closed
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            selector.close();
+        }
+    }
+}
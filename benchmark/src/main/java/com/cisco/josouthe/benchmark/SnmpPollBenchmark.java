@@ -0,0 +1,90 @@
+package com.cisco.josouthe.benchmark;
+
+import com.cisco.josouthe.ConfigEndpoint;
+import com.cisco.josouthe.CounterStore;
+import com.cisco.josouthe.PollResult;
+import com.cisco.josouthe.RequestLimiter;
+import com.cisco.josouthe.SNMPAPI;
+import com.cisco.josouthe.SNMPSessionManager;
+import com.singularity.ee.agent.systemagent.api.exception.TaskExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * One full poll of an endpoint, GET batches plus an ifTable walk, against a simulated agent on loopback
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnmpPollBenchmark {
+
+    @Param({"10", "100"})
+    public int oidCount;
+
+    @Param({"10", "40"})
+    public int maxVarbindsPerPDU;
+
+    @Param({"0", "48"})
+    public int interfaces;
+
+    private AgentSimulator simulator;
+    private SNMPSessionManager sessionManager;
+    private SNMPAPI session;
+    private RequestLimiter requestLimiter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, TaskExecutionException {
+        simulator = new AgentSimulator(SimulatedMib.standard(oidCount, interfaces), new AgentSimulator.Settings());
+        ConfigEndpoint endpoint = new ConfigEndpoint();
+        endpoint.name = "bench";
+        endpoint.snmpEndpoint.targetAddress = simulator.getAgents().get(0).getTargetAddress();
+        endpoint.snmpEndpoint.maxVarbindsPerPDU = maxVarbindsPerPDU;
+        endpoint.snmpEndpoint.oids = new HashMap<>();
+        for( int i = 1; i <= oidCount; i++ ) endpoint.snmpEndpoint.oids.put(SimulatedMib.SCALAR_PREFIX + i +".0", "oid "+ i);
+        if( interfaces > 0 ) {
+            ConfigEndpoint.Walk walk = new ConfigEndpoint.Walk();
+            walk.name = "Interfaces";
+            walk.labelOid = SimulatedMib.IF_NAME;
+            walk.columns.put(SimulatedMib.IF_HC_IN_OCTETS, "ifHCInOctets");
+            endpoint.snmpEndpoint.walks.add(walk);
+        }
+        sessionManager = new SNMPSessionManager(2, new CounterStore(10000, 10));
+        sessionManager.setMetricPrefix("Custom Metrics|SNMP Monitor|");
+        session = sessionManager.getSession(endpoint, null);
+        requestLimiter = new RequestLimiter(100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sessionManager.close();
+        simulator.close();
+    }
+
+    @Benchmark
+    public PollResult getAllData() throws TaskExecutionException {
+        return session.getAllData();
+    }
+
+    @Benchmark
+    public PollResult getAllDataAsync() {
+        return session.getAllDataAsync(requestLimiter).join();
+    }
+}
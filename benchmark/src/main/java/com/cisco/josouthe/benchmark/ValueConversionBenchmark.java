@@ -0,0 +1,68 @@
+package com.cisco.josouthe.benchmark;
+
+import com.cisco.josouthe.Utility;
+import com.cisco.josouthe.ValueType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.snmp4j.smi.Counter32;
+import org.snmp4j.smi.Counter64;
+import org.snmp4j.smi.Gauge32;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.Variable;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Turning snmp values into metric values, the String and regex path SNMPMonitor.printMetricPath still uses for
+ * Object values against the ValueType path the poller uses
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValueConversionBenchmark {
+
+    private Variable[] variables;
+    private ValueType[] types;
+
+    @Setup
+    public void setup() {
+        variables = new Variable[] { new Counter32(4000000000L), new Gauge32(75), new Counter64(123456789012345L),
+                new OctetString("12345"), new OctetString("0.52"), new OctetString("-17.25") };
+        types = new ValueType[variables.length];
+        for( int i = 0; i < variables.length; i++ ) types[i] = ValueType.of(variables[i]);
+    }
+
+    @Benchmark
+    public void utilityDecimal( Blackhole blackhole ) {
+        for( Variable variable : variables ) {
+            String value = variable.toString();
+            if( Utility.isDecimalNumber(value) ) {
+                blackhole.consume(Utility.decimalToLong(value));
+            } else {
+                blackhole.consume(value);
+            }
+        }
+    }
+
+    @Benchmark
+    public void valueTypeResolved( Blackhole blackhole ) {
+        for( int i = 0; i < variables.length; i++ ) blackhole.consume(types[i].toLong(variables[i]));
+    }
+
+    @Benchmark
+    public void valueTypeOf( Blackhole blackhole ) {
+        for( Variable variable : variables ) blackhole.consume(ValueType.of(variable).toLong(variable));
+    }
+}
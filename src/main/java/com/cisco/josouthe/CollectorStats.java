@@ -0,0 +1,53 @@
+package com.cisco.josouthe;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * What the collector knows about itself, written under metricPrefix|Collector| at the end of every run. The snmp
+ * and trap counters are bumped from the dispatcher threads for every packet, so they are LongAdders that are only
+ * summed once a run, everything else is only touched by execute().
+ */
+public class CollectorStats {
+    public final LongAdder pdusSent = new LongAdder();
+    public final LongAdder pdusReceived = new LongAdder();
+    public final LongAdder timeouts = new LongAdder();
+    public final LongAdder tooBigSplits = new LongAdder();
+    public final LongAdder sendErrors = new LongAdder();
+    public final LongAdder metricsWritten = new LongAdder();
+    public final LongAdder metricsSuppressed = new LongAdder();
+    public final LongAdder trapsReceived = new LongAdder();
+    public final LongAdder trapsRejected = new LongAdder();
+    public final LongAdder trapsDropped = new LongAdder();
+    public final LongAdder trapsUnknownSource = new LongAdder();
+    public final LongAdder informsAcknowledged = new LongAdder();
+    private final Map<String,Long> lastTotals = new HashMap<>();
+    private long[] pollTimes = new long[64];
+    private int pollTimeCount = 0;
+
+    public void addPollTime( long millis ) {
+        if( pollTimeCount == pollTimes.length ) pollTimes = Arrays.copyOf(pollTimes, pollTimeCount*2);
+        pollTimes[pollTimeCount++] = millis;
+    }
+
+    //the poll times added since the last call, sorted
+    public long[] takePollTimes() {
+        long[] sorted = Arrays.copyOf(pollTimes, pollTimeCount);
+        Arrays.sort(sorted);
+        pollTimeCount = 0;
+        return sorted;
+    }
+
+    public static long percentile( long[] sorted, int percentile ) {
+        if( sorted.length == 0 ) return 0;
+        return sorted[Math.max(0, Math.min(sorted.length -1, (int) Math.ceil(sorted.length * percentile / 100.0) -1))];
+    }
+
+    //how much an ever growing total kept elsewhere went up since the last call with the same name
+    public long delta( String name, long total ) {
+        Long last = lastTotals.put(name, total);
+        return last == null ? total : Math.max(0, total - last);
+    }
+}
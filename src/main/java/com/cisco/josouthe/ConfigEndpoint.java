@@ -1,6 +1,10 @@
 package com.cisco.josouthe;
 
+import org.snmp4j.smi.OID;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ConfigEndpoint {
@@ -11,14 +15,67 @@ public class ConfigEndpoint {
 
     public class SNMPEndpoint {
         public String targetAddress="unconfigured", version="2", communityName="public", contextName="", securityName, authPassphrase, authProtocol="hmac384sha512", privPassphrase, privProtocol="aes256";
-        public Map<String,String> oids = new HashMap<String,String>(){{
-            put(".1.3.6.1.4.1.2021.10.1.3.1", "1 minute load average");
-            put(".1.3.6.1.4.1.2021.10.1.3.2", "5 minute load average");
-            put(".1.3.6.1.4.1.2021.10.1.3.3", "15 minute load average");
-            put(".1.3.6.1.4.1.2021.11.11.0", "CPU Idle %");
-            put(".1.3.6.1.4.1.2021.11.9.0", "CPU User %");
-            put(".1.3.6.1.4.1.2021.4.4.0", "Swap Available");
-            put(".1.3.6.1.4.1.2021.4.3.0", "Swap Total");
-        }};
+        public int maxVarbindsPerPDU = 10;
+        public int pollIntervalSecs = 0; //continuous mode only, 0 uses the task's pollIntervalSecs
+        public String profile; //optional name of a DeviceProfile, oids, walks and oidOptions are then overrides on top of it
+        public Map<String,String> oids;
+        public List<Walk> walks = new ArrayList<>();
+        public Map<String,OIDOptions> oidOptions = new HashMap<>();
+        private transient DeviceProfile deviceProfile;
+        private transient String overridesKey;
+
+        public String getSessionKey() {
+            return String.join("|", targetAddress, version, communityName, contextName, String.valueOf(securityName),
+                    String.valueOf(authPassphrase), authProtocol, String.valueOf(privPassphrase), privProtocol,
+                    String.valueOf(maxVarbindsPerPDU), String.valueOf(pollIntervalSecs),
+                    deviceProfile != null ? deviceProfile.getKey() +"|"+ overridesKey : String.valueOf(oids) +"|"+ walks +"|"+ oidOptions);
+        }
+
+        void setProfile( DeviceProfile deviceProfile, String overridesKey ) {
+            this.deviceProfile = deviceProfile;
+            this.overridesKey = overridesKey;
+        }
+
+        public DeviceProfile getDeviceProfile() { return deviceProfile; }
+
+        //OIDs from a profile are parsed once and shared by all its endpoints
+        public OID toOID( String oid ) {
+            return deviceProfile != null ? deviceProfile.toOID(oid) : new OID(oid);
+        }
+    }
+
+    public static class Walk {
+        public String name, labelOid;
+        public Map<String,String> columns = new HashMap<>();
+        public int maxRepetitions = 20, maxRows = 500;
+        public int intervalSecs = 0; //continuous mode only, 0 uses the endpoint's pollIntervalSecs
+
+        public String toString() {
+            return String.join("|", String.valueOf(name), String.valueOf(labelOid), String.valueOf(columns),
+                    String.valueOf(maxRepetitions), String.valueOf(maxRows), String.valueOf(intervalSecs));
+        }
+    }
+
+    //per OID settings, keyed by the same OID string used in oids or in a walk's columns
+    public static class OIDOptions {
+        public String mode = "current";
+        public int intervalSecs = 0; //continuous mode only, 0 uses the endpoint's pollIntervalSecs
+        public String write = "always"; //"change" writes only when the value moved by more than deadband, or every heartbeatSecs
+        public double deadband = 0;
+        public int heartbeatSecs = 300;
+
+        public boolean isRate() { return "rate".equalsIgnoreCase(mode); }
+        public boolean isChangeOnly() { return "change".equalsIgnoreCase(write); }
+
+        public String toString() {
+            return mode +"|"+ intervalSecs +"|"+ write +"|"+ deadband +"|"+ heartbeatSecs;
+        }
+    }
+
+    private transient String sessionKey;
+
+    public String getSessionKey() {
+        if( sessionKey == null ) sessionKey = name +"|"+ snmpEndpoint.getSessionKey();
+        return sessionKey;
     }
 }
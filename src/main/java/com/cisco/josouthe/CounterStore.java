@@ -0,0 +1,166 @@
+package com.cisco.josouthe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.snmp4j.smi.OID;
+
+/*
+ * Previous counter samples for rate mode OIDs, kept in parallel primitive arrays with open addressing on a
+ * 64 bit key made from the endpoint name and the full OID instance. Every sample records the run it was last
+ * seen in, instances not seen for staleRuns runs are dropped and the table never grows past maxEntries.
+ */
+public class CounterStore {
+    private static final Logger logger = LogManager.getFormatterLogger();
+    private static final long TWO_32 = 1L << 32;
+    private static final double LOAD_FACTOR = 0.6;
+    private final int maxEntries, staleRuns;
+    private long[] keys;
+    private long[] values;
+    private long[] times;
+    private int[] epochs;
+    private int[] lastSeen;
+    private int size = 0, run = 0;
+    private long rejected = 0;
+
+    public CounterStore( int maxEntries, int staleRuns ) {
+        this.maxEntries = Math.max(16, maxEntries);
+        this.staleRuns = Math.max(1, staleRuns);
+        allocate(1024);
+    }
+
+    public static long seed( String name ) {
+        long hash = 0xcbf29ce484222325L;
+        for( int i = 0; i < name.length(); i++ ) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public static long key( long seed, OID oid ) {
+        long hash = seed;
+        for( int i = 0; i < oid.size(); i++ ) {
+            hash ^= oid.get(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = mix(hash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    //the murmur3 finalizer, so every bit of the result depends on every bit of a seed or key
+    public static long mix( long hash ) {
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+        return hash;
+    }
+
+    public synchronized void beginRun() {
+        run++;
+        if( rejected > 0 ) {
+            logger.warn(String.format("Counter store is full at %d entries, %d rate samples had no room last run", size, rejected));
+            rejected = 0;
+        }
+    }
+
+    public synchronized void endRun() {
+        int live = 0;
+        for( int i = 0; i < keys.length; i++ ) {
+            if( keys[i] != 0 && run - lastSeen[i] < staleRuns ) live++;
+        }
+        if( live < size ) rehash(keys.length);
+    }
+
+    public synchronized int size() { return size; }
+
+    /*
+     * stores the sample and returns the per second rate since the previous one, or ValueType.INVALID when there
+     * is no usable previous sample: the first sample, an agent restart (epoch changed) or a counter that went
+     * backwards by more than a plausible wrap
+     */
+    public synchronized long rate( long key, long value, ValueType type, long timeMillis, int epoch ) {
+        int slot = find(key);
+        if( keys[slot] == 0 ) {
+            //stale entries are only dropped by endRun(), a full table turns new instances away until then
+            if( size >= maxEntries ) {
+                rejected++;
+                return ValueType.INVALID;
+            }
+            if( size+1 > keys.length*LOAD_FACTOR ) {
+                rehash(keys.length*2);
+                slot = find(key);
+            }
+            keys[slot] = key;
+            size++;
+            store(slot, value, timeMillis, epoch);
+            return ValueType.INVALID;
+        }
+        long previousValue = values[slot], previousTime = times[slot];
+        int previousEpoch = epochs[slot];
+        store(slot, value, timeMillis, epoch);
+        long elapsed = timeMillis - previousTime;
+        if( previousEpoch != epoch || elapsed <= 0 ) return ValueType.INVALID;
+        long delta = delta(previousValue, value, type);
+        if( delta < 0 ) return ValueType.INVALID;
+        return delta > Long.MAX_VALUE/1000 ? (delta/elapsed)*1000 : (delta*1000)/elapsed;
+    }
+
+    static long delta( long previous, long current, ValueType type ) {
+        switch (type) {
+            case COUNTER32: {
+                if( current >= previous ) return current - previous;
+                long wrapped = current + TWO_32 - previous;
+                return wrapped < (TWO_32 >>> 1) ? wrapped : -1;
+            }
+            case COUNTER64: {
+                //unsigned arithmetic, the subtraction is already modulo 2^64 so a wrap needs no special case
+                long delta = current - previous;
+                return delta >= 0 ? delta : -1;
+            }
+            default:
+                return current >= previous ? current - previous : -1;
+        }
+    }
+
+    private void store( int slot, long value, long timeMillis, int epoch ) {
+        values[slot] = value;
+        times[slot] = timeMillis;
+        epochs[slot] = epoch;
+        lastSeen[slot] = run;
+    }
+
+    private int find( long key ) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while( keys[slot] != 0 && keys[slot] != key ) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void allocate( int capacity ) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        times = new long[capacity];
+        epochs = new int[capacity];
+        lastSeen = new int[capacity];
+    }
+
+    //rebuilds the table without stale entries, this is also how entries are deleted from the open addressing table
+    private void rehash( int capacity ) {
+        long[] oldKeys = keys, oldValues = values, oldTimes = times;
+        int[] oldEpochs = epochs, oldLastSeen = lastSeen;
+        allocate(capacity);
+        size = 0;
+        for( int i = 0; i < oldKeys.length; i++ ) {
+            if( oldKeys[i] == 0 || run - oldLastSeen[i] >= staleRuns ) continue;
+            int slot = find(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            times[slot] = oldTimes[i];
+            epochs[slot] = oldEpochs[i];
+            lastSeen[slot] = oldLastSeen[i];
+            size++;
+        }
+    }
+}
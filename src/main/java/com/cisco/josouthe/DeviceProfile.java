@@ -0,0 +1,98 @@
+package com.cisco.josouthe;
+
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A named set of OIDs, walks and OID options shared by every endpoint that references it with "profile", so a
+ * thousand identical switches are one table in the config file and on the heap instead of a thousand copies.
+ * Profiles are compiled once per config load into unmodifiable maps with every OID parsed, endpoints without
+ * overrides use these very objects. An endpoint's own oids, walks and oidOptions are layered on top: its oids and
+ * options replace or add to the profile's by OID, an OID mapped to "" drops it, and its walks replace the
+ * profile's walks of the same name or are added.
+ */
+public class DeviceProfile {
+    public Map<String,String> oids;
+    public List<ConfigEndpoint.Walk> walks;
+    public Map<String,ConfigEndpoint.OIDOptions> oidOptions;
+
+    private transient String name, key;
+    private transient Map<String, OID> parsed = Collections.emptyMap();
+
+    //called by the configuration once, after the file is read and before any endpoint references the profile
+    public void compile( String name ) {
+        this.name = name;
+        this.oids = oids == null ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(oids));
+        this.walks = walks == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(walks));
+        this.oidOptions = oidOptions == null ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(oidOptions));
+        Map<String, OID> parsed = new HashMap<>();
+        for( String oid : oids.keySet() ) parsed.put(oid, new OID(oid));
+        for( String oid : oidOptions.keySet() ) parsed.computeIfAbsent(oid, OID::new);
+        for( ConfigEndpoint.Walk walk : walks ) {
+            if( walk.labelOid != null && !"".equals(walk.labelOid) ) parsed.computeIfAbsent(walk.labelOid, OID::new);
+            if( walk.columns != null ) for( String column : walk.columns.keySet() ) parsed.computeIfAbsent(column, OID::new);
+        }
+        this.parsed = Collections.unmodifiableMap(parsed);
+        this.key = name +"@"+ digest(oids +"|"+ walks +"|"+ oidOptions);
+    }
+
+    public String getName() { return name; }
+
+    //name and a digest of the content, endpoints using the profile keep their sessions across reloads until it changes
+    public String getKey() { return key; }
+
+    //the profile's parsed instance of an OID, shared by all its endpoints, or a new one for an OID it does not have
+    public OID toOID( String oid ) {
+        OID shared = parsed.get(oid);
+        return shared != null ? shared : new OID(oid);
+    }
+
+    //sets the endpoint's effective oids, walks and options, the profile's own objects unless it overrides them
+    public void applyTo( ConfigEndpoint.SNMPEndpoint snmpEndpoint ) {
+        Map<String,String> ownOids = snmpEndpoint.oids;
+        List<ConfigEndpoint.Walk> ownWalks = snmpEndpoint.walks;
+        Map<String,ConfigEndpoint.OIDOptions> ownOptions = snmpEndpoint.oidOptions;
+        snmpEndpoint.oids = overlay(oids, ownOids);
+        snmpEndpoint.oidOptions = overlay(oidOptions, ownOptions);
+        if( ownWalks == null || ownWalks.isEmpty() ) {
+            snmpEndpoint.walks = walks;
+        } else {
+            Map<String, ConfigEndpoint.Walk> byName = new LinkedHashMap<>();
+            for( ConfigEndpoint.Walk walk : walks ) byName.put(String.valueOf(walk.name), walk);
+            for( ConfigEndpoint.Walk walk : ownWalks ) byName.put(String.valueOf(walk.name), walk);
+            snmpEndpoint.walks = Collections.unmodifiableList(new ArrayList<>(byName.values()));
+        }
+        snmpEndpoint.setProfile(this, String.valueOf(ownOids) +"|"+ ownWalks +"|"+ ownOptions);
+    }
+
+    private static String digest( String content ) {
+        try {
+            return new OctetString(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8))).toHexString();
+        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+            throw new IllegalStateException(noSuchAlgorithmException);
+        }
+    }
+
+    private static <V> Map<String, V> overlay( Map<String, V> shared, Map<String, V> own ) {
+        if( own == null || own.isEmpty() ) return shared;
+        Map<String, V> merged = new LinkedHashMap<>(shared);
+        for( Map.Entry<String, V> entry : own.entrySet() ) {
+            if( entry.getValue() == null || "".equals(entry.getValue()) ) {
+                merged.remove(entry.getKey());
+            } else {
+                merged.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(merged);
+    }
+}
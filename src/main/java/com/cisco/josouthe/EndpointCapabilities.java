@@ -0,0 +1,155 @@
+package com.cisco.josouthe;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Which of the configured OIDs and walks one endpoint does not have. An OID answered with noSuchObject,
+ * noSuchInstance or endOfMibView, or singled out by an error status, and a walk that comes back without a single
+ * row, is left out of the requests instead of being asked for again every run. It is probed again after
+ * minRetryMillis, doubling after every probe that still finds it missing up to maxRetryMillis, and right away once
+ * sysUpTime shows the agent restarted, since a reboot is when a firmware upgrade or a newly enabled MIB shows up.
+ */
+public class EndpointCapabilities {
+    private final long minRetryMillis, maxRetryMillis;
+    private final Map<PollPlan.Entry, Missing> entries = new HashMap<>();
+    private final Map<PollPlan.WalkPlan, Missing> walks = new HashMap<>();
+    private boolean changed = false;
+    private volatile int tracked = 0; //lets found() skip the lock for the usual endpoint that has everything
+
+    public EndpointCapabilities( long minRetryMillis, long maxRetryMillis ) {
+        this.minRetryMillis = Math.max(1000, minRetryMillis);
+        this.maxRetryMillis = Math.max(this.minRetryMillis, maxRetryMillis);
+    }
+
+    //returns true when the OID was not known to be missing, a failed probe only backs off further
+    public synchronized boolean missing( PollPlan.Entry entry, String reason, long now ) {
+        return missing(entries, entry, reason, now);
+    }
+
+    public synchronized boolean missing( PollPlan.WalkPlan walk, String reason, long now ) {
+        return missing(walks, walk, reason, now);
+    }
+
+    private <K> boolean missing( Map<K, Missing> map, K key, String reason, long now ) {
+        Missing missing = map.get(key);
+        if( missing == null ) {
+            missing = new Missing(reason, now, minRetryMillis);
+            map.put(key, missing);
+            tracked++;
+            changed = true;
+            return true;
+        }
+        if( !missing.skipped ) {
+            missing.retryMillis = missing.afterRestart ? minRetryMillis : Math.min(maxRetryMillis, missing.retryMillis * 2);
+            missing.afterRestart = false;
+            missing.skipped = true;
+            changed = true;
+        }
+        missing.reason = reason;
+        missing.nextProbe = now + missing.retryMillis;
+        return false;
+    }
+
+    //returns true when a missing OID answered after all
+    public boolean found( PollPlan.Entry entry ) {
+        return tracked > 0 && found(entries, entry);
+    }
+
+    public boolean found( PollPlan.WalkPlan walk ) {
+        return tracked > 0 && found(walks, walk);
+    }
+
+    private synchronized <K> boolean found( Map<K, Missing> map, K key ) {
+        if( map.remove(key) == null ) return false;
+        tracked--;
+        changed = true;
+        return true;
+    }
+
+    public synchronized boolean isSkipped( PollPlan.WalkPlan walk ) {
+        Missing missing = walks.get(walk);
+        return missing != null && missing.skipped;
+    }
+
+    //everything whose retry time has come is requested again with the next poll, returns how many
+    public synchronized int probeDue( long now ) {
+        int due = 0;
+        for( Missing missing : entries.values() ) due += missing.probeIfDue(now, false);
+        for( Missing missing : walks.values() ) due += missing.probeIfDue(now, false);
+        if( due > 0 ) changed = true;
+        return due;
+    }
+
+    //the agent restarted, everything missing is probed again with the next poll
+    public synchronized int restarted( long now ) {
+        int due = 0;
+        for( Missing missing : entries.values() ) due += missing.probeIfDue(now, true);
+        for( Missing missing : walks.values() ) due += missing.probeIfDue(now, true);
+        if( due > 0 ) changed = true;
+        return due;
+    }
+
+    //true once after the skipped set changed, the plan's request PDUs have to be rebuilt
+    public synchronized boolean takeChanged() {
+        boolean wasChanged = changed;
+        changed = false;
+        return wasChanged;
+    }
+
+    public synchronized BitSet getSkippedEntries() {
+        BitSet skipped = new BitSet();
+        for( Map.Entry<PollPlan.Entry, Missing> entry : entries.entrySet() )
+            if( entry.getValue().skipped ) skipped.set(entry.getKey().index);
+        return skipped;
+    }
+
+    public synchronized int size() { return entries.size() + walks.size(); }
+
+    //what is missing and why, for the capability report
+    public synchronized List<Report> getReport() {
+        List<Report> report = new ArrayList<>(entries.size() + walks.size());
+        for( Map.Entry<PollPlan.Entry, Missing> entry : entries.entrySet() )
+            report.add(new Report(entry.getKey().name, entry.getKey().oid.toDottedString(), entry.getValue()));
+        for( Map.Entry<PollPlan.WalkPlan, Missing> walk : walks.entrySet() )
+            report.add(new Report("walk "+ walk.getKey().name, walk.getKey().columns.length == 0 ? "" : walk.getKey().columns[0].toDottedString(), walk.getValue()));
+        return report;
+    }
+
+    private static class Missing {
+        private String reason;
+        private final long since;
+        private long retryMillis, nextProbe;
+        private boolean skipped = true, afterRestart = false;
+
+        private Missing( String reason, long since, long retryMillis ) {
+            this.reason = reason;
+            this.since = since;
+            this.retryMillis = retryMillis;
+            this.nextProbe = since + retryMillis;
+        }
+
+        private int probeIfDue( long now, boolean force ) {
+            if( !skipped || (!force && now < nextProbe) ) return 0;
+            skipped = false;
+            afterRestart = force; //a restarted agent starts over from the shortest retry
+            return 1;
+        }
+    }
+
+    public static class Report {
+        public final String name, oid, reason, since, nextProbe;
+
+        private Report( String name, String oid, Missing missing ) {
+            this.name = name;
+            this.oid = oid;
+            this.reason = missing.reason;
+            this.since = Instant.ofEpochMilli(missing.since).toString();
+            this.nextProbe = missing.skipped ? Instant.ofEpochMilli(missing.nextProbe).toString() : "probing";
+        }
+    }
+}
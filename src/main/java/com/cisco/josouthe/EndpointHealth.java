@@ -0,0 +1,93 @@
+package com.cisco.josouthe;
+
+/*
+ * Response times and availability of one endpoint. Round trip times of answered requests feed a smoothed RTT
+ * and variance, RFC 6298 style, and the request timeout follows them between minTimeout and maxTimeout, so a
+ * healthy device that answers in 20ms is given up on in well under a second instead of after the fixed 5 seconds.
+ * Polls that get no answer at all count against a circuit breaker, after failureThreshold of them in a row the
+ * endpoint is down: it is skipped and only probed with a single request every few runs, backing off up to
+ * maxProbeInterval runs, until it answers again.
+ */
+public class EndpointHealth {
+    private final int minTimeout, maxTimeout, failureThreshold, maxProbeInterval;
+    private double smoothedRtt = -1, rttVariance = 0;
+    private int backoff = 1;
+    private int consecutiveFailures = 0;
+    private boolean down = false;
+    private int probeInterval = 1, runsUntilProbe = 0;
+
+    public EndpointHealth( int minTimeout, int maxTimeout, int failureThreshold, int maxProbeInterval ) {
+        this.maxTimeout = Math.max(1, maxTimeout);
+        this.minTimeout = Math.max(1, Math.min(minTimeout, this.maxTimeout));
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.maxProbeInterval = Math.max(1, maxProbeInterval);
+    }
+
+    //until the first answer there is nothing to go on, so the configured maximum is used
+    public synchronized int getTimeout() {
+        if( smoothedRtt < 0 ) return maxTimeout;
+        long timeout = (long) Math.ceil(smoothedRtt + 4 * rttVariance) * backoff;
+        return (int) Math.max(minTimeout, Math.min(maxTimeout, timeout));
+    }
+
+    public int getMaxTimeout() { return maxTimeout; }
+
+    //only call this for requests answered before their first retry, a late answer could belong to any of the retries
+    public synchronized void addRtt( long rttMillis ) {
+        if( smoothedRtt < 0 ) {
+            smoothedRtt = rttMillis;
+            rttVariance = rttMillis / 2.0;
+        } else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rttMillis);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rttMillis;
+        }
+        backoff = 1;
+    }
+
+    //a request ran out of retries, give the next ones more time until an answer comes back
+    public synchronized void timedOut() {
+        if( smoothedRtt >= 0 && getTimeout() < maxTimeout ) backoff *= 2;
+    }
+
+    public synchronized long getSmoothedRtt() { return smoothedRtt < 0 ? -1 : Math.round(smoothedRtt); }
+
+    public synchronized boolean isDown() { return down; }
+
+    //called once per run for a down endpoint, true when this run should probe it
+    public synchronized boolean isProbeDue() {
+        if( !down ) return false;
+        if( --runsUntilProbe > 0 ) return false;
+        runsUntilProbe = probeInterval;
+        return true;
+    }
+
+    //returns true when the endpoint changed state, up to down or down to up
+    public synchronized boolean pollFinished( boolean answered ) {
+        if( answered ) {
+            consecutiveFailures = 0;
+            probeInterval = 1;
+            if( down ) {
+                down = false;
+                return true;
+            }
+            return false;
+        }
+        consecutiveFailures++;
+        if( down ) {
+            probeInterval = Math.min(maxProbeInterval, probeInterval * 2);
+            runsUntilProbe = probeInterval;
+            return false;
+        }
+        if( consecutiveFailures >= failureThreshold ) {
+            down = true;
+            probeInterval = 1;
+            runsUntilProbe = probeInterval;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized int getConsecutiveFailures() { return consecutiveFailures; }
+
+    public synchronized int getProbeInterval() { return probeInterval; }
+}
@@ -0,0 +1,208 @@
+package com.cisco.josouthe;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.snmp4j.Snmp;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.UsmTimeEntry;
+import org.snmp4j.security.UsmTimeTable;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * What v3 sessions learn about their agents: each agent's authoritative engine ID with its boots and time, and the
+ * auth and priv keys localized to that engine. Discovery costs a blocking round trip per device and localizing a
+ * passphrase hashes a megabyte of it, so a restart, or a settings change that rebuilds every session, used to spend
+ * its first runs on them for every v3 device. With the cache a session is rebuilt without either; discovery runs only
+ * on first contact, after the agent reports an unknown engine ID or a time outside its window, or after it stops
+ * answering long enough to be marked down. Entries live in memory for the life of the collector and, when
+ * snmpEngineCacheFile is set, in a file encrypted with AES-GCM under a key derived from snmpEngineCachePassphrase,
+ * so they survive a machine agent restart.
+ */
+public class EngineCache {
+    private static final Logger logger = LogManager.getFormatterLogger();
+    private static final byte[] MAGIC = "SNMPEC1".getBytes(StandardCharsets.US_ASCII);
+    private static final int SALT_BYTES = 16, IV_BYTES = 12, KEY_ITERATIONS = 100000;
+    private final Map<String, Engine> engines = new ConcurrentHashMap<>(); //target address -> engine
+    private final Map<String, String> keys = new ConcurrentHashMap<>(); //engine|protocols|passphrase digest -> localized key
+    private final SecureRandom random = new SecureRandom();
+    private volatile boolean changed = false;
+    private File file = null;
+    private char[] passphrase = null;
+
+    //the engine ID of the agent at address, discovered only when it is not known yet
+    public byte[] getEngineID( Snmp snmp, Address address, long timeout ) {
+        Engine engine = engines.get(address.toString());
+        if( engine != null ) {
+            OctetString engineID = OctetString.fromHexString(engine.engineID);
+            UsmTimeTable timeTable = snmp.getUSM().getTimeTable();
+            //a cached time saves the notInTimeWindow round trip of the first request, if it is off the agent says so
+            if( timeTable.getEntry(engineID) == null && engine.boots > 0 )
+                timeTable.addEntry(new UsmTimeEntry(engineID, engine.boots, (int) Math.min(Integer.MAX_VALUE, engine.time + (System.currentTimeMillis() - engine.timeSampled) / 1000)));
+            return engineID.getValue();
+        }
+        byte[] engineID = snmp.discoverAuthoritativeEngineID(address, timeout);
+        if( engineID == null ) return null;
+        engine = new Engine();
+        engine.engineID = new OctetString(engineID).toHexString();
+        engines.put(address.toString(), engine);
+        changed = true;
+        logger.debug(String.format("Discovered engine %s at %s", engine.engineID, address));
+        return engineID;
+    }
+
+    //privProtocol null for the auth key, otherwise the priv key, which is derived with the auth protocol's hash
+    public OctetString getKey( SecurityProtocols securityProtocols, OID authProtocol, OID privProtocol, String passphrase, byte[] engineID ) {
+        String key = String.join("|", new OctetString(engineID).toHexString(), String.valueOf(authProtocol), String.valueOf(privProtocol), digest(passphrase));
+        String localized = keys.get(key);
+        if( localized != null ) return OctetString.fromHexString(localized);
+        byte[] localizedKey = privProtocol == null
+                ? securityProtocols.passwordToKey(authProtocol, new OctetString(passphrase), engineID)
+                : securityProtocols.passwordToKey(privProtocol, authProtocol, new OctetString(passphrase), engineID);
+        if( localizedKey == null ) return null;
+        keys.put(key, new OctetString(localizedKey).toHexString());
+        changed = true;
+        return new OctetString(localizedKey);
+    }
+
+    //the agent no longer knows us by this engine ID or time, the next session for it discovers again
+    public void invalidate( Snmp snmp, Address address ) {
+        Engine engine = engines.remove(address.toString());
+        if( engine == null ) return;
+        snmp.getUSM().getTimeTable().removeEntry(OctetString.fromHexString(engine.engineID));
+        changed = true;
+        logger.info(String.format("Forgot engine %s of %s, it will be discovered again", engine.engineID, address));
+    }
+
+    public void retainOnly( Set<String> addresses ) {
+        if( !engines.keySet().retainAll(addresses) ) return;
+        Set<String> engineIDs = new HashSet<>();
+        for( Engine engine : engines.values() ) engineIDs.add(engine.engineID);
+        keys.keySet().removeIf( key -> !engineIDs.contains(key.substring(0, key.indexOf('|'))) );
+        changed = true;
+    }
+
+    public int size() { return engines.size(); }
+
+    //the file is read right away, an unreadable one is ignored and replaced on the next save
+    public synchronized void setFile( File file, String passphrase ) {
+        if( file.equals(this.file) && Arrays.equals(passphrase.toCharArray(), this.passphrase) ) return;
+        this.file = file;
+        this.passphrase = passphrase.toCharArray();
+        if( !file.exists() ) return;
+        try {
+            Contents contents = new Gson().fromJson(decrypt(Files.readAllBytes(file.toPath())), Contents.class);
+            if( contents == null ) return;
+            if( contents.engines != null ) for( Map.Entry<String, Engine> engine : contents.engines.entrySet() ) engines.putIfAbsent(engine.getKey(), engine.getValue());
+            if( contents.keys != null ) for( Map.Entry<String, String> key : contents.keys.entrySet() ) keys.putIfAbsent(key.getKey(), key.getValue());
+            logger.info(String.format("Loaded %d SNMP engines and %d localized keys from %s", engines.size(), keys.size(), file));
+        } catch (IOException | GeneralSecurityException | JsonParseException exception) {
+            logger.warn(String.format("Could not read SNMP engine cache %s, starting without it: %s", file, exception));
+        }
+    }
+
+    //written only when something changed, with the boots and time last seen from each agent
+    public synchronized void save( UsmTimeTable timeTable ) {
+        if( file == null || !changed ) return;
+        changed = false;
+        Contents contents = new Contents();
+        long now = System.currentTimeMillis();
+        for( Map.Entry<String, Engine> entry : engines.entrySet() ) {
+            Engine engine = entry.getValue();
+            UsmTimeEntry time = timeTable.getTime(OctetString.fromHexString(engine.engineID));
+            if( time != null ) {
+                engine.boots = time.getEngineBoots();
+                engine.time = time.getLatestReceivedTime();
+                engine.timeSampled = now;
+            }
+            contents.engines.put(entry.getKey(), engine);
+        }
+        contents.keys.putAll(keys);
+        File temp = new File(file.getPath() +".tmp");
+        try {
+            Files.write(temp.toPath(), encrypt(new Gson().toJson(contents)));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | GeneralSecurityException exception) {
+            changed = true;
+            logger.warn(String.format("Could not write SNMP engine cache %s: %s", file, exception));
+        }
+    }
+
+    private byte[] encrypt( String json ) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_BYTES], iv = new byte[IV_BYTES];
+        random.nextBytes(salt);
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, deriveKey(salt), new GCMParameterSpec(128, iv));
+        byte[] encrypted = cipher.doFinal(json.getBytes(StandardCharsets.UTF_8));
+        byte[] data = new byte[MAGIC.length + SALT_BYTES + IV_BYTES + encrypted.length];
+        System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+        System.arraycopy(salt, 0, data, MAGIC.length, SALT_BYTES);
+        System.arraycopy(iv, 0, data, MAGIC.length + SALT_BYTES, IV_BYTES);
+        System.arraycopy(encrypted, 0, data, MAGIC.length + SALT_BYTES + IV_BYTES, encrypted.length);
+        return data;
+    }
+
+    private String decrypt( byte[] data ) throws GeneralSecurityException {
+        int header = MAGIC.length + SALT_BYTES + IV_BYTES;
+        if( data.length < header || !Arrays.equals(MAGIC, Arrays.copyOf(data, MAGIC.length)) )
+            throw new GeneralSecurityException("not an engine cache file");
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, deriveKey(Arrays.copyOfRange(data, MAGIC.length, MAGIC.length + SALT_BYTES)),
+                new GCMParameterSpec(128, data, MAGIC.length + SALT_BYTES, IV_BYTES));
+        return new String(cipher.doFinal(data, header, data.length - header), StandardCharsets.UTF_8);
+    }
+
+    private SecretKeySpec deriveKey( byte[] salt ) throws GeneralSecurityException {
+        PBEKeySpec keySpec = new PBEKeySpec(passphrase, salt, KEY_ITERATIONS, 256);
+        try {
+            return new SecretKeySpec(SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(keySpec).getEncoded(), "AES");
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    //passphrases are never kept, keys are found by a digest of them
+    private static String digest( String passphrase ) {
+        try {
+            return new OctetString(MessageDigest.getInstance("SHA-256").digest(passphrase.getBytes(StandardCharsets.UTF_8))).toHexString();
+        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+            throw new IllegalStateException(noSuchAlgorithmException);
+        }
+    }
+
+    public static class Engine {
+        public String engineID;
+        public int boots = 0, time = 0;
+        public long timeSampled = 0;
+    }
+
+    public static class Contents {
+        public Map<String, Engine> engines = new HashMap<>();
+        public Map<String, String> keys = new HashMap<>();
+    }
+}
@@ -0,0 +1,144 @@
+package com.cisco.josouthe;
+
+import com.singularity.ee.agent.systemagent.api.MetricWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.function.Function;
+
+/*
+ * The MetricWriter of every metric path written, with the value and time it was last written, kept in parallel
+ * arrays with open addressing on the path's hash like the CounterStore. Writers are created once per path instead
+ * of on every write, and change only OIDs are written when their value moved by more than the deadband or the
+ * heartbeat came up. Paths not written for staleRuns runs are dropped, a full table still hands out writers but
+ * without caching them, and values it has no room for are always written.
+ */
+public class MetricCache {
+    private static final Logger logger = LogManager.getFormatterLogger();
+    private static final double LOAD_FACTOR = 0.6;
+    private final int maxEntries, staleRuns;
+    private String[] paths;
+    private int[] hashes;
+    private MetricWriter[] writers;
+    private long[] values;
+    private long[] written;
+    private int[] lastSeen;
+    private int size = 0, run = 0;
+    private long rejected = 0;
+
+    public MetricCache( int maxEntries, int staleRuns ) {
+        this.maxEntries = Math.max(16, maxEntries);
+        this.staleRuns = Math.max(1, staleRuns);
+        allocate(1024);
+    }
+
+    public synchronized void beginRun() {
+        run++;
+        if( rejected > 0 ) {
+            logger.warn(String.format("Metric cache is full at %d paths, %d writes went uncached last run", size, rejected));
+            rejected = 0;
+        }
+    }
+
+    public synchronized void endRun() {
+        int live = 0;
+        for( int i = 0; i < paths.length; i++ ) {
+            if( paths[i] != null && run - lastSeen[i] < staleRuns ) live++;
+        }
+        if( live < size ) rehash(paths.length);
+    }
+
+    public synchronized int size() { return size; }
+
+    //the writer for path, for metrics that are always written so there is no value to keep
+    public synchronized MetricWriter getWriter( String path, Function<String, MetricWriter> factory ) {
+        int hash = hash(path);
+        int slot = find(path, hash);
+        if( paths[slot] == null ) {
+            slot = insert(path, hash, slot, factory);
+            if( slot < 0 ) return factory.apply(path);
+        }
+        lastSeen[slot] = run;
+        return writers[slot];
+    }
+
+    /*
+     * the writer for path, or null when the value is to be suppressed: it is within deadband of the last value
+     * written to path and that was less than heartbeatMillis ago. A negative deadband always writes, a heartbeat of
+     * 0 or less never forces a write of an unchanged value
+     */
+    public synchronized MetricWriter getWriter( String path, long value, long deadband, long heartbeatMillis, long now, Function<String, MetricWriter> factory ) {
+        int hash = hash(path);
+        int slot = find(path, hash);
+        if( paths[slot] == null ) {
+            slot = insert(path, hash, slot, factory);
+            if( slot < 0 ) return factory.apply(path);
+        } else if( deadband >= 0 && Math.abs(value - values[slot]) <= deadband && (heartbeatMillis <= 0 || now - written[slot] < heartbeatMillis) ) {
+            lastSeen[slot] = run;
+            return null;
+        }
+        values[slot] = value;
+        written[slot] = now;
+        lastSeen[slot] = run;
+        return writers[slot];
+    }
+
+    //adds path at its free slot, or -1 when full: stale entries are only dropped by endRun(), until then new paths go uncached
+    private int insert( String path, int hash, int slot, Function<String, MetricWriter> factory ) {
+        if( size >= maxEntries ) {
+            rejected++;
+            return -1;
+        }
+        if( size+1 > paths.length*LOAD_FACTOR ) {
+            rehash(paths.length*2);
+            slot = find(path, hash);
+        }
+        paths[slot] = path;
+        hashes[slot] = hash;
+        writers[slot] = factory.apply(path);
+        size++;
+        return slot;
+    }
+
+    private static int hash( String path ) {
+        int hash = path.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private int find( String path, int hash ) {
+        int mask = paths.length - 1;
+        int slot = hash & mask;
+        while( paths[slot] != null && (hashes[slot] != hash || !paths[slot].equals(path)) ) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void allocate( int capacity ) {
+        paths = new String[capacity];
+        hashes = new int[capacity];
+        writers = new MetricWriter[capacity];
+        values = new long[capacity];
+        written = new long[capacity];
+        lastSeen = new int[capacity];
+    }
+
+    //rebuilds the table without stale entries, this is also how entries are deleted from the open addressing table
+    private void rehash( int capacity ) {
+        String[] oldPaths = paths;
+        int[] oldHashes = hashes, oldLastSeen = lastSeen;
+        MetricWriter[] oldWriters = writers;
+        long[] oldValues = values, oldWritten = written;
+        allocate(capacity);
+        size = 0;
+        for( int i = 0; i < oldPaths.length; i++ ) {
+            if( oldPaths[i] == null || run - oldLastSeen[i] >= staleRuns ) continue;
+            int slot = find(oldPaths[i], oldHashes[i]);
+            paths[slot] = oldPaths[i];
+            hashes[slot] = oldHashes[i];
+            writers[slot] = oldWriters[i];
+            values[slot] = oldValues[i];
+            written[slot] = oldWritten[i];
+            lastSeen[slot] = oldLastSeen[i];
+            size++;
+        }
+    }
+}
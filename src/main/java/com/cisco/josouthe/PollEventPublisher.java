@@ -0,0 +1,127 @@
+package com.cisco.josouthe;
+
+import com.cisco.josouthe.analytics.AnalyticsPublisher;
+import com.cisco.josouthe.analytics.AnalyticsSchemaException;
+import com.cisco.josouthe.analytics.Schema;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Turns a poll result into Events API records, one for the endpoint's configured OIDs and one per walked table row.
+ * Schemas are built from the value types resolved on the plan, so fields follow the snmp syntax of each OID:
+ * numbers, counters and rates are integers, decimal strings are floats.
+ */
+public class PollEventPublisher {
+    private static final Logger logger = LogManager.getFormatterLogger();
+    private final AnalyticsPublisher publisher;
+    private final String endpointSchemaName, walkSchemaPrefix;
+
+    public PollEventPublisher( AnalyticsPublisher publisher, String endpointSchemaName, String walkSchemaPrefix ) {
+        this.publisher = publisher;
+        this.endpointSchemaName = endpointSchemaName;
+        this.walkSchemaPrefix = walkSchemaPrefix;
+    }
+
+    public AnalyticsPublisher getPublisher() { return publisher; }
+
+    public void publish( ConfigEndpoint endpoint, PollResult result, long pollTime ) {
+        PollPlan plan = result.getPlan();
+        String time = String.valueOf(pollTime);
+        try {
+            Map<String,String> endpointEvent = null;
+            for( int i = 0; i < result.getScalarCount(); i++ ) {
+                PollPlan.Entry entry = plan.getEntry(i);
+                if( entry.internal || !result.isPresent(i) ) continue;
+                if( endpointEvent == null ) endpointEvent = newEvent(endpoint, time);
+                endpointEvent.put(entry.fieldName, toString(entry.getValueType(), entry.rate, result.getValue(i)));
+            }
+            if( endpointEvent != null ) publisher.publish(getEndpointSchema(plan), endpointEvent);
+
+            if( result.getRowCount() == 0 ) return;
+            Map<PollPlan.WalkPlan, Schema> walkSchemas = new HashMap<>();
+            List<Map<String,String>> rowEvents = new ArrayList<>(Collections.nCopies(result.getRowCount(), (Map<String,String>) null));
+            for( int i = result.getScalarCount(); i < result.size(); i++ ) {
+                if( !result.isPresent(i) ) continue;
+                int rowId = result.getRowId(i);
+                PollResult.Row row = result.getRow(rowId);
+                Map<String,String> rowEvent = rowEvents.get(rowId);
+                if( rowEvent == null ) {
+                    rowEvent = newEvent(endpoint, time);
+                    rowEvents.set(rowId, rowEvent);
+                    rowEvent.put("rowLabel", row.label);
+                    rowEvent.put("rowIndex", row.index);
+                }
+                int column = result.getColumn(i);
+                rowEvent.put(row.walk.getFieldName(column), toString(row.walk.getColumnType(column), row.walk.isRate(column), result.getValue(i)));
+            }
+            for( int rowId = 0; rowId < rowEvents.size(); rowId++ ) {
+                if( rowEvents.get(rowId) == null ) continue;
+                PollPlan.WalkPlan walk = result.getRow(rowId).walk;
+                Schema schema = walkSchemas.get(walk);
+                if( schema == null ) walkSchemas.put(walk, schema = getWalkSchema(walk));
+                publisher.publish(schema, rowEvents.get(rowId));
+            }
+        } catch (AnalyticsSchemaException analyticsSchemaException) {
+            logger.warn("Could not build analytics events for %s: %s", endpoint.name, analyticsSchemaException.getMessage());
+        }
+    }
+
+    private Schema getEndpointSchema( PollPlan plan ) throws AnalyticsSchemaException {
+        Schema schema = newSchema(endpointSchemaName);
+        for( int i = 0; i < plan.size(); i++ ) {
+            PollPlan.Entry entry = plan.getEntry(i);
+            if( entry.internal || entry.getValueType() == null ) continue;
+            addField(schema, entry.fieldName, entry.getValueType(), entry.rate);
+        }
+        return schema;
+    }
+
+    private Schema getWalkSchema( PollPlan.WalkPlan walk ) throws AnalyticsSchemaException {
+        Schema schema = newSchema(walkSchemaPrefix + PollPlan.toFieldName(walk.name));
+        schema.addField("rowLabel", "");
+        schema.addField("rowIndex", "");
+        for( int column = 0; column < walk.getColumnCount(); column++ ) {
+            if( column == walk.labelColumn || walk.getColumnType(column) == null ) continue;
+            addField(schema, walk.getFieldName(column), walk.getColumnType(column), walk.isRate(column));
+        }
+        return schema;
+    }
+
+    private Schema newSchema( String name ) throws AnalyticsSchemaException {
+        Schema schema = new Schema(name);
+        schema.addField("endpointName", "");
+        schema.addField("targetAddress", "");
+        schema.addField("pollTime", new Date());
+        return schema;
+    }
+
+    //fields that collide with one already in the schema keep the first definition
+    private void addField( Schema schema, String fieldName, ValueType type, boolean rate ) {
+        try {
+            schema.addField(fieldName, type.isScaled() && !rate ? (Object) 0.0d : (Object) 0);
+        } catch (AnalyticsSchemaException analyticsSchemaException) {
+            logger.debug("Skipping analytics field in %s: %s", schema.name, analyticsSchemaException.getMessage());
+        }
+    }
+
+    private Map<String,String> newEvent( ConfigEndpoint endpoint, String time ) {
+        Map<String,String> event = new HashMap<>();
+        event.put("endpointName", endpoint.name);
+        event.put("targetAddress", endpoint.snmpEndpoint.targetAddress);
+        event.put("pollTime", time);
+        return event;
+    }
+
+    private static String toString( ValueType type, boolean rate, long value ) {
+        if( type != null && type.isScaled() && !rate ) return BigDecimal.valueOf(value, 2).toPlainString();
+        return Long.toString(value);
+    }
+}
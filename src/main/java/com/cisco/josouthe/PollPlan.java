@@ -0,0 +1,311 @@
+package com.cisco.josouthe;
+
+import org.snmp4j.PDU;
+import org.snmp4j.Session;
+import org.snmp4j.Target;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.util.DefaultPDUFactory;
+import org.snmp4j.util.TableUtils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/*
+ * Everything about polling an endpoint that does not change between runs, compiled once when the session
+ * is created: parsed OIDs, request PDU templates split into batches, full metric paths and an OID keyed
+ * lookup for the responses. OIDs and walks are grouped by their configured poll interval, a poll can cover any
+ * set of groups and the batches for each set that comes up are built once and cached.
+ */
+public class PollPlan {
+    public static final OID SYS_UP_TIME = new OID(".1.3.6.1.2.1.1.3.0");
+    private final Entry[] entries;
+    private final Map<OID, Entry> lookup;
+    private volatile Batch[] batches;
+    private volatile BitSet skipped = new BitSet();
+    private final WalkPlan[] walks;
+    private final Supplier<PDU> pduSupplier;
+    private final String endpointPath;
+    private final int maxVarbindsPerPDU;
+    private final int[] groupIntervals;
+    private final long allGroups;
+    private final Map<Long, Batch[]> groupBatches = new ConcurrentHashMap<>();
+    private Entry sysUpTime;
+    private boolean rates = false;
+
+    public PollPlan( String metricPrefix, ConfigEndpoint endpoint, int maxVarbindsPerPDU, Supplier<PDU> pduSupplier, Session session, String contextName, CollectorStats stats ) {
+        this.pduSupplier = pduSupplier;
+        this.maxVarbindsPerPDU = maxVarbindsPerPDU;
+        Map<Integer,Integer> groups = new LinkedHashMap<>();
+        this.endpointPath = metricPrefix + endpoint.name +"|";
+        long seed = CounterStore.seed(endpoint.name);
+        Map<OID, ConfigEndpoint.OIDOptions> options = new HashMap<>();
+        if( endpoint.snmpEndpoint.oidOptions != null ) {
+            for( Map.Entry<String, ConfigEndpoint.OIDOptions> option : endpoint.snmpEndpoint.oidOptions.entrySet() )
+                options.put(endpoint.snmpEndpoint.toOID(option.getKey()), option.getValue());
+        }
+        List<ConfigEndpoint.Walk> walkConfigs = endpoint.snmpEndpoint.walks;
+        this.walks = new WalkPlan[walkConfigs == null ? 0 : walkConfigs.size()];
+        for( int i=0; i< walks.length; i++ ) {
+            walks[i] = new WalkPlan(walkConfigs.get(i), endpoint.snmpEndpoint, endpointPath, session, contextName, seed, options, stats, group(groups, walkConfigs.get(i).intervalSecs));
+            rates |= walks[i].hasRates();
+        }
+        Map<String,String> oids = endpoint.snmpEndpoint.oids == null ? Collections.emptyMap() : endpoint.snmpEndpoint.oids;
+        List<Entry> entryList = new ArrayList<>(oids.size()+1);
+        this.lookup = new HashMap<>(oids.size()*2);
+        for( Map.Entry<String,String> oid : oids.entrySet() ) {
+            OID parsed = endpoint.snmpEndpoint.toOID(oid.getKey());
+            ConfigEndpoint.OIDOptions option = options.get(parsed);
+            Entry entry = new Entry(entryList.size(), parsed, oid.getValue(), endpointPath + oid.getValue(), option != null && option.isRate(), CounterStore.key(seed, parsed), false,
+                    group(groups, option == null ? 0 : option.intervalSecs), option != null && option.isChangeOnly() ? option : null);
+            entryList.add(entry);
+            lookup.put(entry.oid, entry);
+            rates |= entry.rate;
+            if( SYS_UP_TIME.equals(parsed) ) sysUpTime = entry;
+        }
+        //rates and missing OIDs need sysUpTime to notice agent restarts, it is requested but not reported when not configured
+        if( sysUpTime == null ) {
+            sysUpTime = new Entry(entryList.size(), SYS_UP_TIME, "sysUpTime", endpointPath + "sysUpTime", false, 0, true, -1, null);
+            entryList.add(sysUpTime);
+            lookup.put(SYS_UP_TIME, sysUpTime);
+        }
+        this.entries = entryList.toArray(new Entry[0]);
+        this.groupIntervals = new int[groups.size()];
+        for( Map.Entry<Integer,Integer> group : groups.entrySet() ) groupIntervals[group.getValue()] = group.getKey();
+        this.allGroups = groupIntervals.length == 64 ? -1L : (1L << groupIntervals.length) - 1;
+        this.batches = buildBatches(select(allGroups, skipped));
+    }
+
+    private static int group( Map<Integer,Integer> groups, int intervalSecs ) {
+        Integer group = groups.get(Math.max(0, intervalSecs));
+        if( group == null ) {
+            if( groups.size() == 64 ) throw new IllegalArgumentException("More than 64 different poll intervals on one endpoint");
+            group = groups.size();
+            groups.put(Math.max(0, intervalSecs), group);
+        }
+        return group;
+    }
+
+    private Batch[] buildBatches( Entry[] batchable ) {
+        List<Batch> batchList = new ArrayList<>();
+        for( int i=0; i< batchable.length; i+= maxVarbindsPerPDU ) {
+            Entry[] batchEntries = new Entry[Math.min(batchable.length, i+maxVarbindsPerPDU) - i];
+            System.arraycopy(batchable, i, batchEntries, 0, batchEntries.length);
+            batchList.add(new Batch(batchEntries, buildPDU(batchEntries)));
+        }
+        return batchList.toArray(new Batch[0]);
+    }
+
+    /*
+    the batches for a poll of only some groups, every OID due in the same poll shares the PDUs no matter which group
+    it came from. sysUpTime rides along whenever a rate is polled or an OID is missing, it is what notices agent restarts
+     */
+    public Batch[] getBatches( long groupMask ) {
+        if( (groupMask & allGroups) == allGroups ) return batches;
+        return groupBatches.computeIfAbsent(groupMask & allGroups, mask -> buildBatches(select(mask, skipped)));
+    }
+
+    private Entry[] select( long mask, BitSet skipped ) {
+        List<Entry> selected = new ArrayList<>(entries.length);
+        boolean needsUptime = !skipped.isEmpty();
+        for( Entry entry : entries ) {
+            if( entry.group < 0 || (mask & (1L << entry.group)) == 0 || (skipped.get(entry.index) && entry != sysUpTime) ) continue;
+            selected.add(entry);
+            needsUptime |= entry.rate;
+        }
+        for( WalkPlan walk : walks ) needsUptime |= isPolled(walk, mask) && walk.hasRates();
+        if( needsUptime && !selected.contains(sysUpTime) ) selected.add(sysUpTime);
+        return selected.toArray(new Entry[0]);
+    }
+
+    //leaves the OIDs the agent does not have out of the requests, the cached PDUs are built again
+    public synchronized void setSkipped( BitSet skipped ) {
+        this.skipped = skipped;
+        this.batches = buildBatches(select(allGroups, skipped));
+        groupBatches.clear();
+    }
+
+    public static boolean isPolled( WalkPlan walk, long groupMask ) {
+        return (groupMask & (1L << walk.group)) != 0;
+    }
+
+    //configured interval of each group in seconds, 0 means the endpoint default
+    public int[] getGroupIntervals() { return groupIntervals; }
+    public long getAllGroups() { return allGroups; }
+
+    public PDU buildPDU( Entry[] batchEntries ) {
+        PDU pdu = pduSupplier.get();
+        for( Entry entry : batchEntries ) pdu.add(new VariableBinding(entry.oid));
+        return pdu;
+    }
+
+    public Entry getEntry( OID oid ) { return lookup.get(oid); }
+    public Entry getEntry( int index ) { return entries[index]; }
+    public int size() { return entries.length; }
+    public Batch[] getBatches() { return batches; }
+    public WalkPlan[] getWalks() { return walks; }
+    public Entry getSysUpTime() { return sysUpTime; }
+    public String getEndpointPath() { return endpointPath; }
+    public boolean hasRates() { return rates; }
+
+    //analytics field names only allow letters, digits and _ and can not start with a digit
+    public static String toFieldName( String name ) {
+        if( name == null || name.isEmpty() ) return "_";
+        StringBuilder fieldName = new StringBuilder(name.length()+1);
+        if( Character.isDigit(name.charAt(0)) ) fieldName.append('_');
+        for( int i = 0; i < name.length(); i++ ) {
+            char c = name.charAt(i);
+            fieldName.append( (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ? c : '_' );
+        }
+        return fieldName.toString();
+    }
+
+    public static class Entry {
+        public final int index;
+        public final OID oid;
+        public final String name, fieldName;
+        public final boolean rate, internal;
+        public final long counterKey;
+        public final int group;
+        public final ConfigEndpoint.OIDOptions changeOptions; //null unless the OID is written only when it changes
+        private final String metricPath, scaledMetricPath;
+        private volatile ValueType valueType;
+
+        private Entry( int index, OID oid, String name, String metricPath, boolean rate, long counterKey, boolean internal, int group, ConfigEndpoint.OIDOptions changeOptions ) {
+            this.index = index;
+            this.group = group;
+            this.changeOptions = changeOptions;
+            this.oid = oid;
+            this.name = name;
+            this.fieldName = toFieldName(name);
+            this.metricPath = metricPath;
+            this.scaledMetricPath = metricPath + ValueType.DECIMAL_SUFFIX;
+            this.rate = rate;
+            this.counterKey = counterKey;
+            this.internal = internal;
+        }
+
+        public ValueType getValueType() { return valueType; }
+
+        public ValueType resolve( Variable variable ) {
+            ValueType type = valueType;
+            if( type == null ) {
+                type = ValueType.of(variable);
+                if( type != ValueType.UNSUPPORTED ) valueType = type;
+            }
+            return type;
+        }
+
+        public String getMetricPath() {
+            ValueType type = valueType;
+            return type != null && type.isScaled() ? scaledMetricPath : metricPath;
+        }
+    }
+
+    public class Batch {
+        public final Entry[] entries;
+        private final PDU template;
+        private final AtomicBoolean inUse = new AtomicBoolean(false);
+
+        private Batch( Entry[] entries, PDU template ) {
+            this.entries = entries;
+            this.template = template;
+        }
+
+        //the template is reused unless a request from an earlier run is somehow still outstanding
+        public PDU acquire() {
+            if( inUse.compareAndSet(false, true) ) return template;
+            return buildPDU(entries);
+        }
+
+        public void release( PDU pdu ) {
+            if( pdu == template ) inUse.set(false);
+        }
+    }
+
+    public static class WalkPlan {
+        public final String name, pathPrefix;
+        public final OID[] columns;
+        private final String[] columnNames, scaledColumnNames, fieldNames;
+        private final ValueType[] columnTypes;
+        private final boolean[] columnRates;
+        private final ConfigEndpoint.OIDOptions[] columnChangeOptions;
+        private boolean rates = false;
+        public final long seed;
+        public final int labelColumn, maxRows, group;
+        public final TableUtils tableUtils;
+
+        private WalkPlan( ConfigEndpoint.Walk walk, ConfigEndpoint.SNMPEndpoint snmpEndpoint, String endpointPath, Session session, String contextName, long seed, Map<OID, ConfigEndpoint.OIDOptions> options, CollectorStats stats, int group ) {
+            this.name = walk.name;
+            this.group = group;
+            this.seed = seed;
+            this.maxRows = Math.max(1, walk.maxRows);
+            this.labelColumn = (walk.labelOid == null || "".equals(walk.labelOid) ? -1 : 0);
+            int size = walk.columns.size() + (labelColumn == 0 ? 1 : 0);
+            this.columns = new OID[size];
+            this.columnNames = new String[size];
+            this.scaledColumnNames = new String[size];
+            this.fieldNames = new String[size];
+            this.columnTypes = new ValueType[size];
+            this.columnRates = new boolean[size];
+            this.columnChangeOptions = new ConfigEndpoint.OIDOptions[size];
+            int i = 0;
+            if( labelColumn == 0 ) {
+                fieldNames[i] = "rowLabel";
+                columns[i++] = snmpEndpoint.toOID(walk.labelOid);
+            }
+            for( Map.Entry<String,String> column : walk.columns.entrySet() ) {
+                columns[i] = snmpEndpoint.toOID(column.getKey());
+                ConfigEndpoint.OIDOptions option = options.get(columns[i]);
+                columnRates[i] = option != null && option.isRate();
+                if( option != null && option.isChangeOnly() ) columnChangeOptions[i] = option;
+                rates |= columnRates[i];
+                columnNames[i] = "|"+ column.getValue();
+                fieldNames[i] = toFieldName(column.getValue());
+                scaledColumnNames[i++] = "|"+ column.getValue() + ValueType.DECIMAL_SUFFIX;
+            }
+            this.pathPrefix = endpointPath + (walk.name == null || "".equals(walk.name) ? "" : walk.name +"|");
+            //TableUtils asks for a new PDU for every request it sends, which is where walk requests get counted
+            DefaultPDUFactory pduFactory = new DefaultPDUFactory(PDU.GETBULK) {
+                @Override
+                public PDU createPDU( Target<?> target ) {
+                    if( stats != null ) stats.pdusSent.increment();
+                    return super.createPDU(target);
+                }
+            };
+            if( contextName != null ) pduFactory.setContextName(new OctetString(contextName));
+            this.tableUtils = new TableUtils(session, pduFactory);
+            this.tableUtils.setMaxNumRowsPerPDU(Math.max(1, walk.maxRepetitions));
+        }
+
+        public ValueType resolve( int column, Variable variable ) {
+            ValueType type = columnTypes[column];
+            if( type == null ) {
+                type = ValueType.of(variable);
+                if( type != ValueType.UNSUPPORTED ) columnTypes[column] = type;
+            }
+            return type;
+        }
+
+        public boolean isRate( int column ) { return columnRates[column]; }
+        public ConfigEndpoint.OIDOptions getChangeOptions( int column ) { return columnChangeOptions[column]; }
+        public int getColumnCount() { return columns.length; }
+        public ValueType getColumnType( int column ) { return columnTypes[column]; }
+        public String getFieldName( int column ) { return fieldNames[column]; }
+        public boolean hasRates() { return rates; }
+
+        public String getColumnName( int column, ValueType type ) {
+            return type.isScaled() ? scaledColumnNames[column] : columnNames[column];
+        }
+    }
+}
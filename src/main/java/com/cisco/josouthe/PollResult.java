@@ -0,0 +1,143 @@
+package com.cisco.josouthe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Values collected from one endpoint in one run, scalar values are stored by plan entry index so the
+ * metric path comes straight from the plan, walked rows carry their own path. Rate mode values are kept
+ * raw with their sample time until the poll completes and sysUpTime is known, then turned into rates.
+ */
+public class PollResult {
+    private final PollPlan plan;
+    private final long[] values;
+    private final long[] times;
+    private final boolean[] present;
+    private final List<String> walkPaths = new ArrayList<>();
+    private long[] walkValues = new long[16];
+    private long[] walkKeys = new long[16];
+    private long[] walkTimes = new long[16];
+    private ValueType[] walkRateTypes = new ValueType[16];
+    private int[] walkRows = new int[16];
+    private int[] walkColumns = new int[16];
+    private final List<Row> rows = new ArrayList<>();
+    private long sysUpTime = -1;
+    private boolean reachable = true;
+    private long pollTime = -1;
+
+    public PollResult( PollPlan plan ) {
+        this.plan = plan;
+        this.values = new long[plan.size()];
+        this.times = new long[plan.size()];
+        this.present = new boolean[plan.size()];
+    }
+
+    public void set( PollPlan.Entry entry, long value, long timeMillis ) {
+        values[entry.index] = value;
+        times[entry.index] = timeMillis;
+        present[entry.index] = true;
+    }
+
+    public void setSysUpTime( long sysUpTime ) { this.sysUpTime = sysUpTime; }
+    public long getSysUpTime() { return sysUpTime; }
+
+    //false when nothing was answered, or the endpoint is down and was not probed this run
+    public void setReachable( boolean reachable ) { this.reachable = reachable; }
+    public boolean isReachable() { return reachable; }
+
+    //milliseconds from the start of the poll until its last answer, -1 when the endpoint was not polled
+    public void setPollTime( long pollTime ) { this.pollTime = pollTime; }
+    public long getPollTime() { return pollTime; }
+
+    //rows group the walked values back together for analytics events, the returned id goes with each value
+    public synchronized int addRow( PollPlan.WalkPlan walk, String label, String index ) {
+        rows.add(new Row(walk, label, index));
+        return rows.size()-1;
+    }
+
+    public synchronized void addWalkValue( int row, int column, String metricPath, long value ) {
+        addWalkValue(row, column, metricPath, value, 0, 0, null);
+    }
+
+    public synchronized void addWalkValue( int row, int column, String metricPath, long value, long counterKey, long timeMillis, ValueType rateType ) {
+        int index = walkPaths.size();
+        if( index == walkValues.length ) {
+            walkValues = Arrays.copyOf(walkValues, index*2);
+            walkKeys = Arrays.copyOf(walkKeys, index*2);
+            walkTimes = Arrays.copyOf(walkTimes, index*2);
+            walkRateTypes = Arrays.copyOf(walkRateTypes, index*2);
+            walkRows = Arrays.copyOf(walkRows, index*2);
+            walkColumns = Arrays.copyOf(walkColumns, index*2);
+        }
+        walkPaths.add(metricPath);
+        walkValues[index] = value;
+        walkKeys[index] = counterKey;
+        walkTimes[index] = timeMillis;
+        walkRateTypes[index] = rateType;
+        walkRows[index] = row;
+        walkColumns[index] = column;
+    }
+
+    //replaces raw counter values with per second rates, values without a usable previous sample are dropped
+    public synchronized void applyRates( CounterStore counterStore, int epoch ) {
+        for( int i = 0; i < values.length; i++ ) {
+            PollPlan.Entry entry = plan.getEntry(i);
+            if( !present[i] || !entry.rate ) continue;
+            long rate = counterStore.rate(entry.counterKey, values[i], entry.getValueType(), times[i], epoch);
+            if( rate == ValueType.INVALID ) {
+                present[i] = false;
+            } else {
+                values[i] = rate;
+            }
+        }
+        for( int i = 0; i < walkPaths.size(); i++ ) {
+            if( walkRateTypes[i] == null ) continue;
+            long rate = counterStore.rate(walkKeys[i], walkValues[i], walkRateTypes[i], walkTimes[i], epoch);
+            if( rate == ValueType.INVALID ) {
+                walkPaths.set(i, null);
+            } else {
+                walkValues[i] = rate;
+            }
+        }
+    }
+
+    public int size() { return values.length + walkPaths.size(); }
+
+    public boolean isPresent( int i ) {
+        return i < values.length ? present[i] : walkPaths.get(i - values.length) != null;
+    }
+
+    public String getMetricPath( int i ) {
+        return i < values.length ? plan.getEntry(i).getMetricPath() : walkPaths.get(i - values.length);
+    }
+
+    public long getValue( int i ) {
+        return i < values.length ? values[i] : walkValues[i - values.length];
+    }
+
+    //the options of a value written only when it changes, null for a value written every run
+    public ConfigEndpoint.OIDOptions getChangeOptions( int i ) {
+        if( i < values.length ) return plan.getEntry(i).changeOptions;
+        return rows.get(walkRows[i - values.length]).walk.getChangeOptions(walkColumns[i - values.length]);
+    }
+
+    //values below this index are plan entries, the rest came from walks
+    public int getScalarCount() { return values.length; }
+    public PollPlan getPlan() { return plan; }
+    public int getRowCount() { return rows.size(); }
+    public Row getRow( int row ) { return rows.get(row); }
+    public int getRowId( int i ) { return walkRows[i - values.length]; }
+    public int getColumn( int i ) { return walkColumns[i - values.length]; }
+
+    public static class Row {
+        public final PollPlan.WalkPlan walk;
+        public final String label, index;
+
+        private Row( PollPlan.WalkPlan walk, String label, String index ) {
+            this.walk = walk;
+            this.label = label;
+            this.index = index;
+        }
+    }
+}
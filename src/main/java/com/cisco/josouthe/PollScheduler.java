@@ -0,0 +1,243 @@
+package com.cisco.josouthe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Drives polling in continuous mode. Every endpoint's OIDs are grouped by poll interval and each group is due on a
+ * fixed grid, every interval from an offset hashed from the endpoint name, so the devices are spread over the
+ * interval instead of polled in one burst and a restarted or re-sharded collector keeps polling a device at the
+ * same second. All groups of an endpoint share one offset, taken modulo the greatest common divisor of their
+ * intervals, so groups that come due together are polled together and their OIDs share PDUs. Due groups wait on
+ * a hashed timer wheel with one slot per tick. An endpoint still busy with its previous poll is not polled twice,
+ * whatever came due meanwhile is polled as soon as it finishes.
+ */
+public class PollScheduler implements Runnable {
+    private static final Logger logger = LogManager.getFormatterLogger();
+    private static final int WHEEL_SIZE = 1024;
+    private final long tickMillis;
+    private final int defaultIntervalSecs;
+    private final RequestLimiter requestLimiter;
+    private final BlockingQueue<Completed> completed;
+    private final List<List<Scheduled>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private final Map<String, ScheduledEndpoint> endpoints = new HashMap<>();
+    private final LongAdder pollsStarted = new LongAdder(), pollsDelayed = new LongAdder();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long lag = 0;
+    private long tick;
+    private int longestIntervalSecs;
+
+    public PollScheduler( long tickMillis, int defaultIntervalSecs, RequestLimiter requestLimiter, BlockingQueue<Completed> completed ) {
+        this.tickMillis = Math.max(10, tickMillis);
+        this.defaultIntervalSecs = Math.max(1, defaultIntervalSecs);
+        this.longestIntervalSecs = this.defaultIntervalSecs;
+        this.requestLimiter = requestLimiter;
+        this.completed = completed;
+        for( int i = 0; i < WHEEL_SIZE; i++ ) wheel.add(new ArrayList<>());
+        this.tick = System.currentTimeMillis() / this.tickMillis;
+        this.thread = new Thread(this, "SNMPPollScheduler");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    //replaces the scheduled endpoints, unchanged sessions keep their place on the wheel
+    public synchronized void setEndpoints( Map<ConfigEndpoint, SNMPAPI> sessions ) {
+        Map<String, ScheduledEndpoint> wanted = new LinkedHashMap<>();
+        for( Map.Entry<ConfigEndpoint, SNMPAPI> session : sessions.entrySet() ) {
+            String key = session.getKey().getSessionKey();
+            ScheduledEndpoint existing = endpoints.get(key);
+            wanted.put(key, existing != null && existing.session == session.getValue() ? existing : null);
+        }
+        Iterator<Map.Entry<String, ScheduledEndpoint>> it = endpoints.entrySet().iterator();
+        while( it.hasNext() ) {
+            Map.Entry<String, ScheduledEndpoint> entry = it.next();
+            if( wanted.get(entry.getKey()) != entry.getValue() ) {
+                entry.getValue().removed = true; //dropped from the wheel the next time its slot comes up
+                it.remove();
+            }
+        }
+        int longest = defaultIntervalSecs;
+        for( Map.Entry<ConfigEndpoint, SNMPAPI> session : sessions.entrySet() ) {
+            String key = session.getKey().getSessionKey();
+            ScheduledEndpoint scheduledEndpoint = endpoints.get(key);
+            if( scheduledEndpoint == null ) {
+                scheduledEndpoint = new ScheduledEndpoint(session.getKey(), session.getValue());
+                endpoints.put(key, scheduledEndpoint);
+                schedule(scheduledEndpoint);
+            }
+            longest = Math.max(longest, scheduledEndpoint.longestIntervalSecs);
+        }
+        this.longestIntervalSecs = longest;
+    }
+
+    private void schedule( ScheduledEndpoint scheduledEndpoint ) {
+        ConfigEndpoint endpoint = scheduledEndpoint.endpoint;
+        int endpointInterval = endpoint.snmpEndpoint.pollIntervalSecs > 0 ? endpoint.snmpEndpoint.pollIntervalSecs : defaultIntervalSecs;
+        int[] groupIntervals = scheduledEndpoint.session.getPlan().getGroupIntervals();
+        Map<Long, Long> masksByInterval = new LinkedHashMap<>(); //interval in ticks -> groups
+        for( int group = 0; group < groupIntervals.length; group++ ) {
+            int intervalSecs = groupIntervals[group] > 0 ? groupIntervals[group] : endpointInterval;
+            scheduledEndpoint.longestIntervalSecs = Math.max(scheduledEndpoint.longestIntervalSecs, intervalSecs);
+            masksByInterval.merge(Math.max(1, intervalSecs * 1000L / tickMillis), 1L << group, (a, b) -> a | b);
+        }
+        long divisor = 0;
+        for( long interval : masksByInterval.keySet() ) divisor = gcd(divisor, interval);
+        if( divisor == 0 ) return;
+        long offset = Math.floorMod(CounterStore.mix(CounterStore.seed(endpoint.name)), divisor);
+        long now = Math.max(tick, System.currentTimeMillis() / tickMillis); //never behind the wheel, a passed slot is a full turn away
+        for( Map.Entry<Long, Long> group : masksByInterval.entrySet() ) {
+            long interval = group.getKey();
+            Scheduled scheduled = new Scheduled(scheduledEndpoint, group.getValue(), interval, now + Math.floorMod(offset - now, interval));
+            wheel.get((int) (scheduled.dueTick % WHEEL_SIZE)).add(scheduled);
+        }
+    }
+
+    @Override
+    public void run() {
+        while( running ) {
+            long now = System.currentTimeMillis();
+            long current = now / tickMillis;
+            List<ScheduledEndpoint> due = new ArrayList<>();
+            long firstUnfired;
+            synchronized (this) {
+                firstUnfired = tick;
+                //a late wakeup fires every tick it missed, in order, so nothing due is skipped
+                while( tick <= current ) fire(tick++, due);
+            }
+            //how late the oldest tick fired, not just the latest one
+            if( firstUnfired <= current ) lag = now - firstUnfired * tickMillis;
+            for( ScheduledEndpoint scheduledEndpoint : due ) start(scheduledEndpoint, scheduledEndpoint.takeDue());
+            long sleep = tick * tickMillis - System.currentTimeMillis();
+            try {
+                if( sleep > 0 ) Thread.sleep(sleep);
+            } catch (InterruptedException interruptedException) {
+                if( !running ) break;
+            }
+        }
+    }
+
+    private void fire( long current, List<ScheduledEndpoint> due ) {
+        List<Scheduled> slot = wheel.get((int) (current % WHEEL_SIZE));
+        List<Scheduled> next = null;
+        Iterator<Scheduled> it = slot.iterator();
+        while( it.hasNext() ) {
+            Scheduled scheduled = it.next();
+            if( scheduled.endpoint.removed ) {
+                it.remove();
+                continue;
+            }
+            if( scheduled.dueTick > current ) continue; //due in a later turn of the wheel
+            it.remove();
+            ScheduledEndpoint scheduledEndpoint = scheduled.endpoint;
+            if( scheduledEndpoint.dueMask == 0 && !scheduledEndpoint.busy ) due.add(scheduledEndpoint);
+            if( scheduledEndpoint.busy ) pollsDelayed.increment();
+            scheduledEndpoint.dueMask |= scheduled.groupMask;
+            scheduled.dueTick += scheduled.interval;
+            if( next == null ) next = new ArrayList<>();
+            next.add(scheduled);
+        }
+        if( next != null ) {
+            for( Scheduled scheduled : next ) wheel.get((int) (scheduled.dueTick % WHEEL_SIZE)).add(scheduled);
+        }
+    }
+
+    private void start( ScheduledEndpoint scheduledEndpoint, long groupMask ) {
+        if( groupMask == 0 ) return;
+        pollsStarted.increment();
+        long pollTime = System.currentTimeMillis();
+        scheduledEndpoint.session.getDataAsync(requestLimiter, groupMask).whenComplete( (result, throwable) -> {
+            if( throwable != null ) logger.warn(String.format("Poll of %s failed: %s", scheduledEndpoint.endpoint.name, throwable.getMessage()));
+            if( result != null ) completed.add(new Completed(scheduledEndpoint.endpoint, scheduledEndpoint.session, result, pollTime));
+            start(scheduledEndpoint, scheduledEndpoint.finished());
+        });
+    }
+
+    public long getPollsStarted() { return pollsStarted.sum(); }
+    public long getPollsDelayed() { return pollsDelayed.sum(); }
+    public long getLag() { return lag; }
+    public synchronized int size() { return endpoints.size(); }
+    public synchronized int getLongestIntervalSecs() { return longestIntervalSecs; }
+
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private static long gcd( long a, long b ) {
+        while( b != 0 ) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    public static class Completed {
+        public final ConfigEndpoint endpoint;
+        public final SNMPAPI session;
+        public final PollResult result;
+        public final long pollTime;
+
+        private Completed( ConfigEndpoint endpoint, SNMPAPI session, PollResult result, long pollTime ) {
+            this.endpoint = endpoint;
+            this.session = session;
+            this.result = result;
+            this.pollTime = pollTime;
+        }
+    }
+
+    private class ScheduledEndpoint {
+        private final ConfigEndpoint endpoint;
+        private final SNMPAPI session;
+        private long dueMask = 0;
+        private boolean busy = false, removed = false;
+        private int longestIntervalSecs = 0;
+
+        private ScheduledEndpoint( ConfigEndpoint endpoint, SNMPAPI session ) {
+            this.endpoint = endpoint;
+            this.session = session;
+        }
+
+        private long takeDue() {
+            synchronized (PollScheduler.this) {
+                long mask = dueMask;
+                dueMask = 0;
+                busy = mask != 0;
+                return mask;
+            }
+        }
+
+        //what came due while the poll ran, polled right away
+        private long finished() {
+            synchronized (PollScheduler.this) {
+                long mask = removed ? 0 : dueMask;
+                dueMask = 0;
+                busy = mask != 0;
+                return mask;
+            }
+        }
+    }
+
+    private static class Scheduled {
+        private final ScheduledEndpoint endpoint;
+        private final long groupMask, interval;
+        private long dueTick;
+
+        private Scheduled( ScheduledEndpoint endpoint, long groupMask, long interval, long dueTick ) {
+            this.endpoint = endpoint;
+            this.groupMask = groupMask;
+            this.interval = interval;
+            this.dueTick = dueTick;
+        }
+    }
+}
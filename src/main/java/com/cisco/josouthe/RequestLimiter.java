@@ -0,0 +1,42 @@
+package com.cisco.josouthe;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Caps the number of snmp requests in flight without ever blocking the caller, requests over the limit
+ * are queued and sent from whichever thread releases a permit, usually the snmp dispatcher thread that
+ * just received a response.
+ */
+public class RequestLimiter {
+    private final Semaphore permits;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    public RequestLimiter( int maxInFlight ) {
+        this.permits = new Semaphore(Math.max(1, maxInFlight));
+    }
+
+    public void submit( Runnable request ) {
+        waiting.add(request);
+        drain();
+    }
+
+    public void release() {
+        permits.release();
+        drain();
+    }
+
+    public int getQueued() { return waiting.size(); }
+
+    private void drain() {
+        while( !waiting.isEmpty() && permits.tryAcquire() ) {
+            Runnable request = waiting.poll();
+            if( request == null ) {
+                permits.release();
+            } else {
+                request.run();
+            }
+        }
+    }
+}
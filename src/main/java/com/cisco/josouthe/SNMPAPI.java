@@ -4,40 +4,69 @@ import com.singularity.ee.agent.systemagent.api.TaskExecutionContext;
 import com.singularity.ee.agent.systemagent.api.exception.TaskExecutionException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.snmp4j.DirectUserTarget;
 import org.snmp4j.PDU;
 import org.snmp4j.Snmp;
 import org.snmp4j.Target;
-import org.snmp4j.TransportMapping;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.fluent.PduBuilder;
 import org.snmp4j.fluent.SnmpBuilder;
 import org.snmp4j.fluent.SnmpCompletableFuture;
 import org.snmp4j.fluent.TargetBuilder;
 import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.security.SecurityProtocols;
 import org.snmp4j.smi.*;
+import org.snmp4j.util.RetrievalEvent;
+import org.snmp4j.util.TableEvent;
+import org.snmp4j.util.TableListener;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SNMPAPI {
     private Logger logger = LogManager.getFormatterLogger();
-    private TransportMapping transportMapping;
     private Snmp snmp;
     private TargetBuilder<?> targetBuilder;
+    private Target<?> target;
     private Address address;
     private String contextName;
     private String communityName;
-    private Map<String,String> oidMap;
-    private int timeout=5000;
-    private int retries=3;
+    private PollPlan plan;
+    private CounterStore counterStore;
+    private CollectorStats stats;
+    private EndpointHealth health;
+    private EndpointCapabilities capabilities;
+    private EngineCache engineCache;
+    private String name;
+    private volatile boolean needsDiscovery = false;
+    private long lastSysUpTime = -1;
+    private int restartEpoch = 0;
+    private int maxVarbindsPerPDU=10;
     private int snmpVersion;
 
-    public SNMPAPI(ConfigEndpoint.SNMPEndpoint snmpEndpoint, TaskExecutionContext taskExecutionContext ) throws TaskExecutionException, IOException {
+    public SNMPAPI(ConfigEndpoint endpoint, String metricPrefix, SnmpBuilder snmpBuilder, Snmp snmp, CounterStore counterStore, CollectorStats stats, EngineCache engineCache, EndpointHealth health, EndpointCapabilities capabilities, int retries, TaskExecutionContext taskExecutionContext ) throws TaskExecutionException, IOException {
         if( taskExecutionContext != null ) this.logger=taskExecutionContext.getLogger();
+        this.counterStore = counterStore;
+        this.stats = stats;
+        this.engineCache = engineCache;
+        this.health = health;
+        this.capabilities = capabilities;
+        this.name = endpoint.name;
+        int timeout = health.getMaxTimeout();
+        ConfigEndpoint.SNMPEndpoint snmpEndpoint = endpoint.snmpEndpoint;
+        this.snmp = snmp;
         this.address = GenericAddress.parse(snmpEndpoint.targetAddress);
+        if( this.address == null ) throw new TaskExecutionException("Could not parse SNMP target address: "+ snmpEndpoint.targetAddress);
         this.communityName = snmpEndpoint.communityName;
-        SnmpBuilder snmpBuilder = new SnmpBuilder().udp().threads(2);
         switch(snmpEndpoint.version.charAt(0)) {
             case '1':{
                 this.snmpVersion = SnmpConstants.version1;
@@ -46,8 +75,7 @@ public class SNMPAPI {
             case '2':{
                 this.snmpVersion = SnmpConstants.version2c;
                 if( "".equals(communityName) ) throw new TaskExecutionException("SNMP v2 being used but Community Name Parameter is null?");
-                snmp = snmpBuilder.v2c().build();
-                targetBuilder = snmpBuilder.v2c().target(address)
+                targetBuilder = snmpBuilder.target(address).v2c()
                         .community(new OctetString(communityName))
                         .timeout(timeout).retries(retries);
                 break;
@@ -55,39 +83,55 @@ public class SNMPAPI {
             case '3': {
                 this.snmpVersion = SnmpConstants.version3;
                 List<String> errorParameters = new ArrayList<>();
-                if( "".equals(snmpEndpoint.securityName) ) errorParameters.add("Security Name");
+                if( snmpEndpoint.securityName == null || snmpEndpoint.securityName.isEmpty() ) errorParameters.add("Security Name");
                 if( errorParameters.size() > 0 ) {
                     StringBuilder sb = new StringBuilder("SNMP v3 being used but missing needed parameter(s): ");
                     for( String param : errorParameters ) sb.append(param+",");
                     sb.deleteCharAt(sb.lastIndexOf(","));
                     throw new TaskExecutionException(sb.toString());
                 }
-                snmp = snmpBuilder.v3().usm().build();
-                byte[] targetEngineID = snmp.discoverAuthoritativeEngineID(address, timeout);
+                byte[] targetEngineID = engineCache.getEngineID(snmp, address, timeout);
                 if( targetEngineID == null ) throw new TaskExecutionException("Could not discover the SNMP Authoritative Engine");
-                targetBuilder = snmpBuilder.v3().target(address);
-                TargetBuilder<?>.DirectUserBuilder directUserBuilder = targetBuilder.user(snmpEndpoint.securityName, targetEngineID);
-                if( snmpEndpoint.authPassphrase != null )
-                    directUserBuilder = directUserBuilder.auth(getAuthProtocol(snmpEndpoint.authProtocol)).authPassphrase(snmpEndpoint.authPassphrase);
-                if( snmpEndpoint.privPassphrase != null )
-                    directUserBuilder = directUserBuilder.priv(getPrivProtocol(snmpEndpoint.privProtocol)).privPassphrase(snmpEndpoint.privPassphrase);
-                targetBuilder = directUserBuilder.done().timeout(timeout).retries(retries);
+                targetBuilder = snmpBuilder.target(address).v3();
+                //the same target the fluent DirectUserBuilder makes, with the localized keys taken from the cache
+                SecurityProtocols securityProtocols = snmp.getUSM().getSecurityProtocols();
+                OID authProtocol = null, privProtocol = null;
+                OctetString authKey = null, privKey = null;
+                if( snmpEndpoint.authPassphrase != null ) {
+                    authProtocol = getAuthProtocol(snmpEndpoint.authProtocol).getProtocolID();
+                    authKey = engineCache.getKey(securityProtocols, authProtocol, null, snmpEndpoint.authPassphrase, targetEngineID);
+                }
+                if( snmpEndpoint.privPassphrase != null ) {
+                    if( authProtocol == null ) throw new TaskExecutionException("SNMP v3 privPassphrase is set without an authPassphrase");
+                    privProtocol = getPrivProtocol(snmpEndpoint.privProtocol).getProtocolID();
+                    privKey = engineCache.getKey(securityProtocols, authProtocol, privProtocol, snmpEndpoint.privPassphrase, targetEngineID);
+                }
+                DirectUserTarget<Address> userTarget = new DirectUserTarget<>(address, new OctetString(snmpEndpoint.securityName), targetEngineID,
+                        authProtocol == null ? null : securityProtocols.getAuthenticationProtocol(authProtocol), authKey,
+                        privProtocol == null ? null : securityProtocols.getPrivacyProtocol(privProtocol), privKey);
+                userTarget.setSecurityLevel(privKey != null ? SecurityLevel.AUTH_PRIV : authKey != null ? SecurityLevel.AUTH_NOPRIV : SecurityLevel.NOAUTH_NOPRIV);
+                userTarget.setTimeout(timeout);
+                userTarget.setRetries(retries);
+                this.target = userTarget;
                 this.contextName = snmpEndpoint.contextName;
                 break;
             }
             default: throw new TaskExecutionException("Unknown SNMP Version? "+ snmpEndpoint.version);
         }
-        snmp.listen();
-        this.oidMap = snmpEndpoint.oids;
+        if( snmpEndpoint.maxVarbindsPerPDU > 0 ) this.maxVarbindsPerPDU = snmpEndpoint.maxVarbindsPerPDU;
+        if( this.target == null ) this.target = targetBuilder.build();
+        this.target.setVersion(this.snmpVersion);
+        try {
+            this.plan = new PollPlan(metricPrefix, endpoint, this.maxVarbindsPerPDU, this::newGetPDU, snmp, this.contextName, stats);
+        } catch (IllegalArgumentException illegalArgumentException) {
+            throw new TaskExecutionException(illegalArgumentException.getMessage());
+        }
         if(logger.isDebugEnabled()) {
-            Target<?> target = targetBuilder.build();
-            target.setVersion(this.snmpVersion);
             logger.debug(String.format("snmp target(%s): %s", getVersionString(target.getVersion()), target.toString()));
         }
         logger.debug(String.format("Initialized SNMP API for version %s",snmpEndpoint.version));
     }
 
-
     private String getVersionString( int v ) {
         switch (v) {
             case SnmpConstants.version1: return "v1";
@@ -97,7 +141,7 @@ public class SNMPAPI {
         }
     }
 
-    private TargetBuilder.AuthProtocol getAuthProtocol( String name ) throws TaskExecutionException {
+    static TargetBuilder.AuthProtocol getAuthProtocol( String name ) throws TaskExecutionException {
         try {
             return TargetBuilder.AuthProtocol.valueOf(name);
         } catch (IllegalArgumentException exception ) {
@@ -105,7 +149,7 @@ public class SNMPAPI {
         }
     }
 
-    private TargetBuilder.PrivProtocol getPrivProtocol( String name ) throws TaskExecutionException {
+    static TargetBuilder.PrivProtocol getPrivProtocol( String name ) throws TaskExecutionException {
         try {
             return TargetBuilder.PrivProtocol.valueOf(name);
         } catch (IllegalArgumentException exception ) {
@@ -113,67 +157,438 @@ public class SNMPAPI {
         }
     }
 
-    public Map<String,String> getAllData() throws TaskExecutionException {
-        Map<String,String> data = new HashMap<>();
-        for( String oid : this.oidMap.keySet())  {
-            List<VariableBinding> variableBindings = getOID(oid);
-            if( variableBindings == null || variableBindings.isEmpty() ) {
-                logger.warn("No data returned from snmp request");
-                continue;
+    public PollResult getAllData() throws TaskExecutionException {
+        try {
+            return getAllDataAsync(null).get();
+        } catch (InterruptedException | ExecutionException exception) {
+            throw new TaskExecutionException("Interrupted while waiting for SNMP data: "+ exception.getMessage());
+        }
+    }
+
+    public CompletableFuture<PollResult> getAllDataAsync( RequestLimiter requestLimiter ) {
+        return getDataAsync(requestLimiter, plan.getAllGroups());
+    }
+
+    //polls only the interval groups in groupMask, a down endpoint completes right away without values except when it is probed
+    public CompletableFuture<PollResult> getDataAsync( RequestLimiter requestLimiter, long groupMask ) {
+        if( health.isDown() ) {
+            if( !health.isProbeDue() ) return CompletableFuture.completedFuture(unreachable());
+            CompletableFuture<PollResult> future = new CompletableFuture<>();
+            probe(requestLimiter, groupMask, future);
+            return future;
+        }
+        return poll(requestLimiter, groupMask);
+    }
+
+    private CompletableFuture<PollResult> poll( RequestLimiter requestLimiter, long groupMask ) {
+        AsyncPoll asyncPoll = new AsyncPoll(requestLimiter, groupMask);
+        asyncPoll.start();
+        return asyncPoll.future;
+    }
+
+    private PollResult unreachable() {
+        PollResult result = new PollResult(plan);
+        result.setReachable(false);
+        return result;
+    }
+
+    //one sysUpTime GET without retries, only when it is answered does the full poll run
+    private void probe( RequestLimiter requestLimiter, long groupMask, CompletableFuture<PollResult> future ) {
+        Target<?> probeTarget = target.duplicate();
+        probeTarget.setTimeout(health.getMaxTimeout());
+        probeTarget.setRetries(0);
+        PDU pdu = newGetPDU();
+        pdu.add(new VariableBinding(PollPlan.SYS_UP_TIME));
+        ResponseListener listener = new ResponseListener() {
+            @Override
+            public <A extends Address> void onResponse( ResponseEvent<A> event ) {
+                ((Snmp)event.getSource()).cancel(event.getRequest(), this);
+                if( requestLimiter != null ) requestLimiter.release();
+                if( event.getResponse() == null && event.getError() == null ) stats.timeouts.increment();
+                if( event.getResponse() != null && event.getResponse().getType() == PDU.REPORT ) reported(event.getResponse());
+                probed(event.getResponse() != null, requestLimiter, groupMask, future);
+            }
+        };
+        Runnable send = () -> {
+            try {
+                stats.pdusSent.increment();
+                snmp.send(pdu, probeTarget, null, listener);
+            } catch (IOException exception) {
+                stats.sendErrors.increment();
+                logger.warn(String.format("Error sending snmp probe to %s: %s", address, exception.getMessage()));
+                if( requestLimiter != null ) requestLimiter.release();
+                probed(false, requestLimiter, groupMask, future);
             }
-            VariableBinding variableBinding = variableBindings.get(0);
-            logger.debug(String.format("SNMP Data: requested '%s(%s)' returned %s=%s", this.oidMap.get(oid), oid,  getOIDMetricName(variableBinding.getOid().toString()),variableBinding.toValueString()));
-            data.put( getOIDMetricName(variableBinding.getOid().toString()), variableBinding.toValueString());
+        };
+        if( requestLimiter == null ) {
+            send.run();
+        } else {
+            requestLimiter.submit(send);
         }
-        return data;
     }
 
-    public List<VariableBinding> getOID( String oid ) throws TaskExecutionException {
-        logger.debug(String.format("getOIDs beginning(1): %s", oid));
-        PDU pdu = null;
-        Target<?> target = this.targetBuilder.build();
-        target.setVersion(this.snmpVersion);
-        logger.debug(String.format("Target version %s for target: %s",target.getVersion(),target.toString()));
-        switch (target.getVersion()) {
-            case SnmpConstants.version1:
-            case SnmpConstants.version2c: {
-                pdu = targetBuilder
-                        .pdu()
-                        .type(PDU.GET)
-                        .build();
-                break;
+    private void probed( boolean answered, RequestLimiter requestLimiter, long groupMask, CompletableFuture<PollResult> future ) {
+        health.pollFinished(answered);
+        if( !answered ) {
+            if( logger.isDebugEnabled() ) logger.debug(String.format("SNMP endpoint %s still down, next probe in %d runs", address, health.getProbeInterval()));
+            future.complete(unreachable());
+            return;
+        }
+        logger.info(String.format("SNMP endpoint %s answered again, polling resumes", address));
+        poll(requestLimiter, groupMask).whenComplete( (result, throwable) -> {
+            if( throwable != null ) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(result);
             }
-            case SnmpConstants.version3: {
-                pdu = targetBuilder
-                        .pdu()
-                        //.type(PDU.GETNEXT)
-                        .type(PDU.GET)
-                        .contextName(contextName)
-                        .build();
-                break;
+        });
+    }
+
+    private class AsyncPoll implements ResponseListener {
+        private final RequestLimiter requestLimiter;
+        private final long groupMask;
+        private final PollResult data = new PollResult(plan);
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+        private final CompletableFuture<PollResult> future = new CompletableFuture<>();
+        private final AtomicBoolean answered = new AtomicBoolean(false), unanswered = new AtomicBoolean(false);
+        private final long timeout;
+        private final Target<?> pollTarget;
+        private final long started = System.nanoTime();
+
+        private AsyncPoll( RequestLimiter requestLimiter, long groupMask ) {
+            this.requestLimiter = requestLimiter;
+            this.groupMask = groupMask;
+            this.timeout = health.getTimeout();
+            //a copy, so the timeout of this poll does not leak into one still running or the session's target
+            this.pollTarget = target.duplicate();
+            this.pollTarget.setTimeout(this.timeout);
+        }
+
+        private void start() {
+            int probes = capabilities.probeDue(System.currentTimeMillis());
+            if( probes > 0 ) logger.debug(String.format("Probing %d missing OIDs and walks on %s again", probes, address));
+            if( capabilities.takeChanged() ) plan.setSkipped(capabilities.getSkippedEntries());
+            for( PollPlan.Batch batch : plan.getBatches(groupMask) ) {
+                send( new Request(batch, batch.entries) );
+            }
+            for( PollPlan.WalkPlan walk : plan.getWalks() ) {
+                if( !PollPlan.isPolled(walk, groupMask) || capabilities.isSkipped(walk) ) continue;
+                outstanding.incrementAndGet();
+                if( requestLimiter == null ) {
+                    walk(walk);
+                } else {
+                    requestLimiter.submit( () -> walk(walk) );
+                }
+            }
+            finished();
+        }
+
+        private void send( Request request ) {
+            outstanding.incrementAndGet();
+            if( requestLimiter == null ) {
+                sendNow(request);
+            } else {
+                requestLimiter.submit( () -> sendNow(request) );
+            }
+        }
+
+        private void sendNow( Request request ) {
+            try {
+                request.sentAt = System.nanoTime();
+                stats.pdusSent.increment();
+                snmp.send(request.pdu, pollTarget, request, this);
+            } catch (IOException exception) {
+                stats.sendErrors.increment();
+                logger.warn(String.format("Error sending snmp request to %s for %d OIDs: %s", address, request.entries.length, exception.getMessage()));
+                unanswered.set(true);
+                request.release();
+                if( requestLimiter != null ) requestLimiter.release();
+                finished();
+            }
+        }
+
+        @Override
+        public <A extends Address> void onResponse( ResponseEvent<A> event ) {
+            ((Snmp)event.getSource()).cancel(event.getRequest(), this);
+            if( requestLimiter != null ) requestLimiter.release();
+            Request request = (Request) event.getUserObject();
+            if( event.getResponse() != null ) {
+                answered.set(true);
+                long rtt = (System.nanoTime() - request.sentAt) / 1000000L;
+                if( rtt < timeout ) health.addRtt(rtt);
+            } else {
+                unanswered.set(true);
+                if( event.getError() == null ) {
+                    stats.timeouts.increment();
+                    health.timedOut();
+                }
+            }
+            try {
+                handleResponse(request, event);
+            } catch (Exception exception) {
+                logger.warn(String.format("Error processing snmp response from %s: %s", address, exception.getMessage()), exception);
+            } finally {
+                request.release();
+                finished();
+            }
+        }
+
+        private void handleResponse( Request request, ResponseEvent<?> event ) {
+            PDU responsePDU = event.getResponse();
+            PollPlan.Entry[] entries = request.entries;
+            if( event.getError() != null ) {
+                logger.warn(String.format("Error in snmp request to %s: %s", address, event.getError().getMessage()));
+                return;
+            }
+            if( responsePDU == null ) {
+                logger.warn(String.format("Timeout waiting for snmp response from %s for %d OIDs", address, entries.length));
+                return;
+            }
+            if( responsePDU.getType() == PDU.REPORT ) {
+                logger.warn(String.format("Report PDU returned from %s: %s", address, responsePDU));
+                reported(responsePDU);
+                return;
+            }
+            if( responsePDU.getErrorStatus() == PDU.tooBig && entries.length > 1 ) {
+                int half = entries.length/2;
+                if( logger.isDebugEnabled() ) logger.debug(String.format("Response too big for %d OIDs, splitting request in half", entries.length));
+                stats.tooBigSplits.increment();
+                send( new Request(Arrays.copyOfRange(entries, 0, half)) );
+                send( new Request(Arrays.copyOfRange(entries, half, entries.length)) );
+                return;
+            }
+            if( responsePDU.getErrorStatus() != PDU.noError ) {
+                int errorIndex = responsePDU.getErrorIndex();
+                if( errorIndex > 0 && errorIndex <= entries.length ) missing(entries[errorIndex-1], responsePDU.getErrorStatusText());
+                if( entries.length > 1 && errorIndex > 0 && errorIndex <= entries.length ) {
+                    PollPlan.Entry failed = entries[errorIndex-1];
+                    logger.warn(String.format("Response returned error: %s for OID %s(%s), retrying the rest of the batch without it", responsePDU.getErrorStatusText(), failed.name, failed.oid));
+                    PollPlan.Entry[] remaining = new PollPlan.Entry[entries.length-1];
+                    System.arraycopy(entries, 0, remaining, 0, errorIndex-1);
+                    System.arraycopy(entries, errorIndex, remaining, errorIndex-1, entries.length-errorIndex);
+                    send( new Request(remaining) );
+                    return;
+                }
+                logger.warn(String.format("Response returned error: %s for %d OIDs", responsePDU.getErrorStatusText(), entries.length));
+                return;
+            }
+            List<? extends VariableBinding> variableBindings = responsePDU.getVariableBindings();
+            long now = System.currentTimeMillis();
+            for( int i = 0; i < variableBindings.size(); i++ ) {
+                VariableBinding variableBinding = variableBindings.get(i);
+                PollPlan.Entry entry = (i < entries.length && entries[i].oid.equals(variableBinding.getOid()) ? entries[i] : plan.getEntry(variableBinding.getOid()));
+                if( variableBinding.isException() ) {
+                    if( logger.isDebugEnabled() ) logger.debug(String.format("SNMP Data: OID %s is not available on this agent: %s", variableBinding.getOid(), variableBinding.getVariable()));
+                    if( entry != null ) missing(entry, variableBinding.getVariable().toString());
+                    continue;
+                }
+                if( entry == null ) {
+                    logger.warn(String.format("SNMP Data: agent returned an OID that was not requested: %s", variableBinding.getOid()));
+                    continue;
+                }
+                if( capabilities.found(entry) ) logger.info(String.format("OID %s(%s) is available on %s again", entry.name, entry.oid, address));
+                Variable variable = variableBinding.getVariable();
+                long value = entry.resolve(variable).toLong(variable);
+                if( logger.isDebugEnabled() ) logger.debug(String.format("SNMP Data: returned %s(%s)=%s", entry.name, entry.oid, variable));
+                if( value == ValueType.INVALID ) {
+                    if( logger.isDebugEnabled() ) logger.debug(String.format("SNMP Data: %s(%s) is not a number, %s: %s", entry.name, entry.oid, variable.getSyntaxString(), variable));
+                    continue;
+                }
+                if( entry == plan.getSysUpTime() ) data.setSysUpTime(value);
+                if( !entry.internal ) data.set( entry, value, now);
+            }
+        }
+
+        //the agent does not have this OID, it is left out of requests until it is probed again
+        private void missing( PollPlan.Entry entry, String reason ) {
+            if( entry == plan.getSysUpTime() ) return;
+            if( capabilities.missing(entry, reason, System.currentTimeMillis()) )
+                logger.info(String.format("OID %s(%s) is not available on %s: %s, it is left out of requests and probed again later", entry.name, entry.oid, address, reason));
+        }
+
+        private void walk( PollPlan.WalkPlan walk ) {
+            WalkListener walkListener = new WalkListener(walk);
+            try {
+                walk.tableUtils.getTable(pollTarget, walk.columns, walkListener, walk, null, null);
+            } catch (RuntimeException exception) {
+                logger.warn(String.format("Error starting walk %s on %s: %s", walk.name, address, exception.getMessage()));
+                walkListener.done();
+            }
+        }
+
+        private class WalkListener implements TableListener {
+            private final PollPlan.WalkPlan walk;
+            private final AtomicBoolean done = new AtomicBoolean(false);
+            private int rows = 0;
+
+            private WalkListener( PollPlan.WalkPlan walk ) {
+                this.walk = walk;
+            }
+
+            @Override
+            public boolean next( TableEvent event ) {
+                if( done.get() ) return false;
+                if( ++rows > walk.maxRows ) {
+                    rows--;
+                    logger.warn(String.format("Walk %s on %s stopped at the row limit of %d rows", walk.name, address, walk.maxRows));
+                    done();
+                    return false;
+                }
+                answered.set(true);
+                VariableBinding[] row = event.getColumns();
+                if( row == null ) return true;
+                long now = System.currentTimeMillis();
+                int labelColumn = walk.labelColumn;
+                String label = null;
+                if( labelColumn >= 0 && row[labelColumn] != null && !row[labelColumn].isException() )
+                    label = row[labelColumn].toValueString();
+                if( label == null || "".equals(label) ) label = event.getIndex().toString();
+                String rowPath = walk.pathPrefix + label.replace('|', '_');
+                int rowId = data.addRow(walk, label, event.getIndex().toString());
+                for( int i = 0; i < row.length; i++ ) {
+                    if( i == labelColumn || row[i] == null || row[i].isException() ) continue;
+                    Variable variable = row[i].getVariable();
+                    ValueType type = walk.resolve(i, variable);
+                    long value = type.toLong(variable);
+                    if( value == ValueType.INVALID ) continue;
+                    if( walk.isRate(i) ) {
+                        data.addWalkValue( rowId, i, rowPath + walk.getColumnName(i, type), value, CounterStore.key(walk.seed, row[i].getOid()), now, type);
+                    } else {
+                        data.addWalkValue( rowId, i, rowPath + walk.getColumnName(i, type), value);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void finished( TableEvent event ) {
+                if( event.isError() )
+                    logger.warn(String.format("Walk %s on %s ended with error: %s", walk.name, address, event.getErrorMessage()));
+                if( event.getStatus() == RetrievalEvent.STATUS_TIMEOUT ) {
+                    stats.timeouts.increment();
+                    unanswered.set(true);
+                    health.timedOut();
+                } else if( event.getStatus() == RetrievalEvent.STATUS_EXCEPTION ) {
+                    unanswered.set(true);
+                } else if( event.getStatus() == RetrievalEvent.STATUS_REPORT ) {
+                    answered.set(true);
+                    reported(event.getReportPDU());
+                } else {
+                    answered.set(true);
+                    if( rows > 0 ) {
+                        if( capabilities.found(walk) ) logger.info(String.format("Walk %s on %s returns rows again", walk.name, address));
+                    } else if( capabilities.missing(walk, "no rows", System.currentTimeMillis()) ) {
+                        logger.info(String.format("Walk %s on %s returned no rows, it is left out of polls and probed again later", walk.name, address));
+                    }
+                }
+                done();
             }
-            default: {
-                throw new TaskExecutionException(String.format("SNMP version not yet implemented: %s",target.getVersion()));
+
+            @Override
+            public boolean isFinished() {
+                return done.get();
+            }
+
+            private void done() {
+                if( done.compareAndSet(false, true) ) {
+                    if( logger.isDebugEnabled() ) logger.debug(String.format("Walk %s on %s finished with %d rows", walk.name, address, rows));
+                    if( requestLimiter != null ) requestLimiter.release();
+                    AsyncPoll.this.finished();
+                }
+            }
+        }
+
+        private void finished() {
+            if( outstanding.decrementAndGet() == 0 ) {
+                boolean reachable = answered.get() || !unanswered.get();
+                data.setReachable(reachable);
+                data.setPollTime((System.nanoTime() - started) / 1000000L);
+                if( health.pollFinished(reachable) ) {
+                    logger.warn(String.format("SNMP endpoint %s did not answer %d polls in a row, it is marked down and only probed every few runs", address, health.getConsecutiveFailures()));
+                    //agents may silently drop requests for an engine ID they no longer have instead of reporting it
+                    rediscover();
+                }
+                int epoch = checkRestart(data.getSysUpTime());
+                if( plan.hasRates() && counterStore != null ) {
+                    try {
+                        data.applyRates(counterStore, epoch);
+                    } catch (RuntimeException exception) {
+                        logger.warn(String.format("Error calculating counter rates for %s: %s", address, exception.getMessage()), exception);
+                    }
+                }
+                future.complete(data);
+            }
+        }
+    }
+
+    private class Request {
+        private final PollPlan.Batch batch;
+        private final PollPlan.Entry[] entries;
+        private final PDU pdu;
+        private long sentAt;
+
+        private Request( PollPlan.Batch batch, PollPlan.Entry[] entries ) {
+            this.batch = batch;
+            this.entries = entries;
+            this.pdu = batch.acquire();
+        }
+
+        private Request( PollPlan.Entry[] entries ) {
+            this.batch = null;
+            this.entries = entries;
+            this.pdu = plan.buildPDU(entries);
+        }
+
+        private void release() {
+            if( batch != null ) batch.release(pdu);
+        }
+    }
+
+    public List<VariableBinding> getOID( String oid ) throws TaskExecutionException {
+        try {
+            return getOIDs(Collections.singletonList(oid));
+        } catch (SnmpCompletableFuture.SnmpErrorException snmpErrorException) {
+            logger.warn(String.format("Response returned error: %s",snmpErrorException.getErrorMessage()));
+            throw new TaskExecutionException(snmpErrorException.getErrorMessage());
+        }
+    }
+
+    //a sysUpTime lower than last time means the agent restarted and every counter baseline is void
+    private synchronized int checkRestart( long sysUpTime ) {
+        if( sysUpTime >= 0 ) {
+            if( lastSysUpTime >= 0 && sysUpTime < lastSysUpTime ) {
+                restartEpoch++;
+                logger.info(String.format("SNMP agent %s restarted, sysUpTime went from %d to %d, counter rates start over", address, lastSysUpTime, sysUpTime));
+                int probes = capabilities.restarted(System.currentTimeMillis());
+                if( probes > 0 ) logger.info(String.format("Probing %d missing OIDs and walks on restarted agent %s again", probes, address));
             }
+            lastSysUpTime = sysUpTime;
         }
-        //for( String oidName : oids ) {
-            pdu.addOID( new VariableBinding( new OID(oid)));
-        //}
-        logger.debug(String.format("Request PDU: %s", pdu));
+        return restartEpoch;
+    }
+
+    private PDU newGetPDU() {
+        PduBuilder pduBuilder = targetBuilder.pdu().type(PDU.GET);
+        if( this.snmpVersion == SnmpConstants.version3 ) pduBuilder.contextName(contextName);
+        return pduBuilder.build();
+    }
+
+    public List<VariableBinding> getOIDs( List<String> oids ) throws TaskExecutionException, SnmpCompletableFuture.SnmpErrorException {
+        if( logger.isDebugEnabled() ) logger.debug(String.format("getOIDs beginning(%d): %s", oids.size(), oids));
+        PDU pdu = newGetPDU();
+        for( String oid : oids ) {
+            pdu.add( new VariableBinding( new OID(oid)));
+        }
+        if( logger.isDebugEnabled() ) logger.debug(String.format("Request PDU: %s for target %s", pdu, target));
         SnmpCompletableFuture snmpRequestFuture = SnmpCompletableFuture.send(snmp, target, pdu);
-        logger.debug(String.format("SnmpCompletableFuture created: %s",snmpRequestFuture.toString()));
         try {
             PDU responsePDU = snmpRequestFuture.get();
-            logger.debug(String.format("ResponsePDU: %s SnmpCompletableFuture: %s",responsePDU, snmpRequestFuture));
-            if( responsePDU.getErrorStatus() != PDU.noError ) {
-                logger.warn(String.format("Response returned error: %s",responsePDU.getErrorStatusText()));
-                throw new TaskExecutionException(responsePDU.getErrorStatusText());
-            }
-            List<VariableBinding> vbs = responsePDU.getAll();
-            logger.debug(String.format("List<VariableBinding> returned with size: %d",(vbs==null?0:vbs.size())));
-            return vbs;
+            if( logger.isDebugEnabled() ) logger.debug(String.format("ResponsePDU: %s SnmpCompletableFuture: %s",responsePDU, snmpRequestFuture));
+            return responsePDU.getAll();
         } catch (Exception ex) {
-            if (ex.getCause() != null) {
+            if( ex.getCause() instanceof SnmpCompletableFuture.SnmpErrorException ) {
+                throw (SnmpCompletableFuture.SnmpErrorException) ex.getCause();
+            } else if (ex.getCause() != null) {
                 logger.warn(String.format("Error in processing: %s",ex.getCause().getMessage(),ex.getCause()));
                 throw new TaskExecutionException(ex.getCause().getMessage());
             } else {
@@ -183,17 +598,32 @@ public class SNMPAPI {
     }
 
     public String getOIDMetricName( String oid ) {
-        logger.debug(String.format("getOIDMetricName: oidmap(size:%d) lookup contains '%s'? '%s' is '%s'",this.oidMap.size(), oid, this.oidMap.containsKey(oid), String.valueOf(this.oidMap.get(oid))));
-        String name = this.oidMap.get(oid);
-        if( name == null ) name = this.oidMap.get("."+oid);
-        return name;
+        PollPlan.Entry entry = plan.getEntry(new OID(oid));
+        return entry == null ? null : entry.name;
     }
 
-    public void close() {
-        try {
-            snmp.close();
-        } catch (IOException ignore) {
-            //ignored
-        }
+    public PollPlan getPlan() { return plan; }
+
+    public EndpointHealth getHealth() { return health; }
+
+    public EndpointCapabilities getCapabilities() { return capabilities; }
+
+    public String getName() { return name; }
+
+    //set after the agent reported an unknown engine ID or a time outside its window, or a v3 endpoint was marked down, the session has to be rebuilt
+    public boolean needsDiscovery() { return needsDiscovery; }
+
+    private void reported( PDU report ) {
+        if( report == null || report.size() == 0 ) return;
+        OID oid = report.get(0).getOid();
+        if( oid.startsWith(SnmpConstants.usmStatsUnknownEngineIDs) || oid.startsWith(SnmpConstants.usmStatsNotInTimeWindows) ) rediscover();
     }
+
+    private void rediscover() {
+        if( snmpVersion != SnmpConstants.version3 ) return;
+        needsDiscovery = true;
+        engineCache.invalidate(snmp, address);
+    }
+
+    public Address getAddress() { return address; }
 }
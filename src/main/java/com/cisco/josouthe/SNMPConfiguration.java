@@ -0,0 +1,160 @@
+package com.cisco.josouthe;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.singularity.ee.agent.systemagent.api.exception.TaskExecutionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Keeps the parsed endpoint configuration between runs, the file is only parsed again when its modification
+ * time or size changes and the content hash is actually different. The file is either an array of endpoints or
+ * an object with "profiles", a map of DeviceProfile by name, and "endpoints", that array.
+ */
+public class SNMPConfiguration {
+    private Logger logger = LogManager.getFormatterLogger();
+    private final File configFile;
+    private final Gson gson = new GsonBuilder().create();
+    private ConfigEndpoint[] endpoints = null;
+    private long lastModified = -1, length = -1;
+    private byte[] hash = null;
+    private long generation = 0;
+
+    public SNMPConfiguration( String configFileName ) {
+        this.configFile = new File(configFileName);
+    }
+
+    public String getFileName() { return configFile.getPath(); }
+
+    public long getGeneration() { return generation; }
+
+    public synchronized ConfigEndpoint[] getEndpoints() throws TaskExecutionException {
+        if( endpoints != null && configFile.lastModified() == lastModified && configFile.length() == length )
+            return endpoints;
+        try {
+            long modified = configFile.lastModified();
+            long size = configFile.length();
+            byte[] newHash = hashFile();
+            if( endpoints != null && Arrays.equals(hash, newHash) ) {
+                logger.debug(String.format("Configuration file %s was touched but not changed", configFile));
+            } else {
+                Map<String, DeviceProfile> profiles = new HashMap<>();
+                ConfigEndpoint[] newEndpoints = parse(profiles);
+                logger.info(String.format("Loaded %d SNMP endpoints and %d device profiles from %s", newEndpoints.length, profiles.size(), configFile));
+                this.endpoints = newEndpoints;
+                this.generation++;
+            }
+            this.hash = newHash;
+            this.lastModified = modified;
+            this.length = size;
+        } catch (IOException | JsonParseException | IllegalStateException exception) {
+            logger.warn(String.format("Exception while reading the external file %s, message: %s", configFile, exception));
+            if( endpoints != null ) {
+                logger.warn(String.format("Keeping the previously loaded configuration of %d endpoints", endpoints.length));
+                return endpoints;
+            }
+            throw new TaskExecutionException("Could not read SNMP Enpoint Configuration JSON File: "+ configFile);
+        }
+        return endpoints;
+    }
+
+    private byte[] hashFile() throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            try (InputStream inputStream = new FileInputStream(configFile)) {
+                int read;
+                while( (read = inputStream.read(buffer)) != -1 ) digest.update(buffer, 0, read);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException noSuchAlgorithmException) {
+            throw new IOException("SHA-256 is not available: "+ noSuchAlgorithmException.getMessage());
+        }
+    }
+
+    private ConfigEndpoint[] parse( Map<String, DeviceProfile> profiles ) throws IOException {
+        List<ConfigEndpoint> list = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(configFile), StandardCharsets.UTF_8))) {
+            if( reader.peek() == JsonToken.BEGIN_ARRAY ) {
+                parseEndpoints(reader, list);
+            } else if( reader.peek() == JsonToken.BEGIN_OBJECT ) {
+                reader.beginObject();
+                while( reader.hasNext() ) {
+                    String section = reader.nextName();
+                    if( "endpoints".equals(section) ) {
+                        parseEndpoints(reader, list);
+                    } else if( "profiles".equals(section) ) {
+                        reader.beginObject();
+                        while( reader.hasNext() ) {
+                            String name = reader.nextName();
+                            DeviceProfile profile = gson.fromJson(reader, DeviceProfile.class);
+                            if( profile != null ) profiles.put(name, profile);
+                        }
+                        reader.endObject();
+                    } else {
+                        logger.warn(String.format("Ignoring unknown section %s in %s", section, configFile));
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                throw new JsonParseException("Expected an array of endpoints or an object with profiles and endpoints");
+            }
+        }
+        //profiles may follow the endpoints in the file, they are compiled and applied once everything is read
+        for( Map.Entry<String, DeviceProfile> profile : profiles.entrySet() ) profile.getValue().compile(profile.getKey());
+        List<ConfigEndpoint> resolved = new ArrayList<>(list.size());
+        for( ConfigEndpoint endpoint : list ) {
+            String profileName = endpoint.snmpEndpoint.profile;
+            if( profileName != null && !"".equals(profileName) ) {
+                DeviceProfile profile = profiles.get(profileName);
+                if( profile == null ) {
+                    logger.warn(String.format("Skipping endpoint %s in %s, its profile %s is not defined", endpoint.name, configFile, profileName));
+                    continue;
+                }
+                profile.applyTo(endpoint.snmpEndpoint);
+            }
+            resolved.add(endpoint);
+        }
+        return resolved.toArray(new ConfigEndpoint[0]);
+    }
+
+    private void parseEndpoints( JsonReader reader, List<ConfigEndpoint> list ) throws IOException {
+        reader.beginArray();
+        while( reader.hasNext() ) {
+            ConfigEndpoint endpoint = gson.fromJson(reader, ConfigEndpoint.class);
+            if( isValid(endpoint, list.size()) ) list.add(endpoint);
+        }
+        reader.endArray();
+    }
+
+    private boolean isValid( ConfigEndpoint endpoint, int position ) {
+        if( endpoint == null ) return false;
+        if( endpoint.name == null || "".equals(endpoint.name.trim()) ) {
+            logger.warn(String.format("Skipping endpoint #%d in %s, it has no name", position+1, configFile));
+            return false;
+        }
+        if( endpoint.snmpEndpoint == null || endpoint.snmpEndpoint.version == null || "".equals(endpoint.snmpEndpoint.version) ) {
+            logger.warn(String.format("Skipping endpoint %s in %s, it has no snmpEndpoint version", endpoint.name, configFile));
+            return false;
+        }
+        return true;
+    }
+}
@@ -2,81 +2,452 @@ package com.cisco.josouthe;
 
 
 import com.cisco.josouthe.analytics.Analytics;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.cisco.josouthe.analytics.AnalyticsPublisher;
+import com.cisco.josouthe.analytics.EventSpool;
 import com.singularity.ee.agent.systemagent.api.AManagedMonitor;
 import com.singularity.ee.agent.systemagent.api.MetricWriter;
 import com.singularity.ee.agent.systemagent.api.TaskExecutionContext;
 import com.singularity.ee.agent.systemagent.api.TaskOutput;
 import com.singularity.ee.agent.systemagent.api.exception.TaskExecutionException;
+import com.google.gson.GsonBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class SNMPMonitor extends AManagedMonitor {
     private Logger logger = LogManager.getFormatterLogger();
     private String metricPrefix = "Custom Metrics|SNMP Monitor|";
     private Analytics analyticsAPIClient = null;
+    private PollEventPublisher eventPublisher = null;
+    private SNMPSessionManager sessionManager = null;
+    private final CollectorStats stats = new CollectorStats();
+    private SNMPConfiguration configuration = null;
+    private long configurationGeneration = -1;
+    private ShardSelector shardSelector = null;
+    private ConfigEndpoint[] shardEndpoints = null;
+    private TrapReceiver trapReceiver = null;
+    private boolean engineCacheWarned = false;
+    private File capabilityReportFile = null;
+    private String lastCapabilityReport = null;
+    private MetricCache metricCache = null;
+    private final Function<String, MetricWriter> currentWriter = path -> getMetricWriter(path,
+            MetricWriter.METRIC_AGGREGATION_TYPE_OBSERVATION,
+            MetricWriter.METRIC_TIME_ROLLUP_TYPE_CURRENT,
+            MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_COLLECTIVE);
 
-    ConfigEndpoint[] readSNMPConfiguration(String configFileName) throws TaskExecutionException {
-        ConfigEndpoint[] endpoints = null;
+    @Override
+    public TaskOutput execute(Map<String, String> configMap, TaskExecutionContext taskExecutionContext) throws TaskExecutionException {
+        this.logger = taskExecutionContext.getLogger();
+        long cycleStart = System.currentTimeMillis();
+        ConfigEndpoint[] endpoints = loadEndpoints(configMap, taskExecutionContext);
+        this.metricCache.beginRun();
+        if( "continuous".equalsIgnoreCase(configMap.getOrDefault("schedulerMode", "periodic").trim()) )
+            return pollContinuously(configMap, taskExecutionContext, endpoints);
+        printMetric("up", 1,
+                MetricWriter.METRIC_AGGREGATION_TYPE_OBSERVATION,
+                MetricWriter.METRIC_TIME_ROLLUP_TYPE_SUM,
+                MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_COLLECTIVE
+        );
+
+        this.sessionManager.getCounterStore().beginRun();
+
+        long pollTime = System.currentTimeMillis();
+        long deadline = pollTime + getPollingTimeLimit(configMap);
+        RequestLimiter requestLimiter = new RequestLimiter(getIntArgument(configMap, "maxRequestsInFlight", 100));
+        Map<ConfigEndpoint, CompletableFuture<PollResult>> polls = new LinkedHashMap<>();
+        Map<ConfigEndpoint, EndpointHealth> healths = new HashMap<>();
+        BlockingQueue<ConfigEndpoint> completed = new LinkedBlockingQueue<>();
+        for( Map.Entry<ConfigEndpoint, SNMPAPI> session : getSessions(endpoints, taskExecutionContext).entrySet() ) {
+            ConfigEndpoint endpoint = session.getKey();
+            CompletableFuture<PollResult> poll = session.getValue().getAllDataAsync(requestLimiter);
+            polls.put(endpoint, poll);
+            healths.put(endpoint, session.getValue().getHealth());
+            poll.whenComplete( (data, throwable) -> completed.add(endpoint) );
+        }
+
+        int remaining = polls.size(), unreachable = 0;
         try {
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            BufferedReader reader = new BufferedReader(new FileReader(configFileName));
-            StringBuilder jsonFileContent = new StringBuilder();
-            while (reader.ready()) {
-                jsonFileContent.append(reader.readLine());
+            while( remaining > 0 ) {
+                long waitTime = deadline - System.currentTimeMillis();
+                ConfigEndpoint endpoint = (waitTime > 0 ? completed.poll(waitTime, TimeUnit.MILLISECONDS) : null);
+                if( endpoint == null ) break;
+                remaining--;
+                PollResult pollResult = polls.get(endpoint).getNow(null);
+                if( pollResult == null ) continue;
+                if( !writePollResult(endpoint, pollResult, healths.get(endpoint), pollTime) ) unreachable++;
             }
-            endpoints = gson.fromJson(jsonFileContent.toString(), ConfigEndpoint[].class);
-            if (endpoints != null) return endpoints;
-        } catch (IOException exception) {
-            logger.warn(String.format("Exception while reading the external file %s, message: %s", configFileName, exception));
+        } catch (InterruptedException interruptedException) {
+            logger.warn("Interrupted while waiting for SNMP responses, writing only what has been collected");
+            Thread.currentThread().interrupt();
         }
-        throw new TaskExecutionException("Could not read SNMP Enpoint Configuration JSON File: "+ configFileName);
+        if( remaining > 0 ) {
+            for( Map.Entry<ConfigEndpoint, CompletableFuture<PollResult>> entry : polls.entrySet() ) {
+                if( !entry.getValue().isDone() ) logger.warn(String.format("SNMP endpoint %s did not finish before the polling deadline, its metrics are skipped this run", entry.getKey().name));
+            }
+        }
+        this.sessionManager.getCounterStore().endRun();
+        this.sessionManager.saveEngineCache();
+        writeCapabilityReport();
+        long executionTimeout = getIntArgument(configMap, "executionTimeoutInSecs", 60) * 1000L;
+        long cycleTime = System.currentTimeMillis() - cycleStart;
+        printMetricAverage("Collector|Cycle Time (ms)", cycleTime);
+        printMetricAverage("Collector|Cycle Time % of Timeout", executionTimeout > 0 ? cycleTime * 100 / executionTimeout : 0);
+        printMetricCurrent("Collector|Endpoints|Late", remaining);
+        printTrapMetrics();
+        printCollectorMetrics(endpoints.length, polls.size(), remaining, unreachable);
+        this.metricCache.endRun();
+        return new TaskOutput("SNMP Monitor Metric Upload Complete");
     }
 
-    @Override
-    public TaskOutput execute(Map<String, String> configMap, TaskExecutionContext taskExecutionContext) throws TaskExecutionException {
-        this.logger = taskExecutionContext.getLogger();
+    /*
+     * schedulerMode continuous: execute() never returns, a PollScheduler polls every endpoint on its own interval and
+     * the results are written here as they come in, the MetricWriter is only ever used from this thread. Once a
+     * minute the config is checked, up and the collector metrics are written; counter state is aged once per longest
+     * poll interval so a slow group does not look stale between its polls. Run it with execution-style continuous.
+     */
+    private TaskOutput pollContinuously( Map<String, String> configMap, TaskExecutionContext taskExecutionContext, ConfigEndpoint[] endpoints ) throws TaskExecutionException {
+        BlockingQueue<PollScheduler.Completed> completed = new LinkedBlockingQueue<>();
+        PollScheduler scheduler = new PollScheduler(getIntArgument(configMap, "schedulerTickMillis", 1000),
+                getIntArgument(configMap, "pollIntervalSecs", 60),
+                new RequestLimiter(getIntArgument(configMap, "maxRequestsInFlight", 100)), completed);
+        CounterStore counterStore = this.sessionManager.getCounterStore();
+        Set<String> unreachable = new HashSet<>();
+        long reportInterval = 60000L, nextReport = 0, nextCounterRun = 0;
+        counterStore.beginRun();
+        try {
+            while( true ) {
+                long now = System.currentTimeMillis();
+                if( now >= nextReport ) {
+                    if( nextReport > 0 ) {
+                        endpoints = loadEndpoints(configMap, taskExecutionContext);
+                        printMetricCurrent("Collector|Scheduler|Lag (ms)", scheduler.getLag());
+                        printMetricSum("Collector|Scheduler|Polls Started", stats.delta("pollsStarted", scheduler.getPollsStarted()));
+                        printMetricSum("Collector|Scheduler|Polls Delayed", stats.delta("pollsDelayed", scheduler.getPollsDelayed()));
+                        this.sessionManager.saveEngineCache();
+                        writeCapabilityReport();
+                        printTrapMetrics();
+                        printCollectorMetrics(endpoints.length, scheduler.size(), 0, unreachable.size());
+                        unreachable.clear();
+                    }
+                    printMetric("up", 1,
+                            MetricWriter.METRIC_AGGREGATION_TYPE_OBSERVATION,
+                            MetricWriter.METRIC_TIME_ROLLUP_TYPE_SUM,
+                            MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_COLLECTIVE
+                    );
+                    scheduler.setEndpoints(getSessions(endpoints, taskExecutionContext));
+                    if( now >= nextCounterRun ) {
+                        if( nextCounterRun > 0 ) {
+                            counterStore.endRun();
+                            counterStore.beginRun();
+                            metricCache.endRun();
+                            metricCache.beginRun();
+                        }
+                        nextCounterRun = now + scheduler.getLongestIntervalSecs() * 1000L;
+                    }
+                    nextReport = now + reportInterval;
+                }
+                PollScheduler.Completed poll = completed.poll(nextReport - now, TimeUnit.MILLISECONDS);
+                if( poll != null && !writePollResult(poll.endpoint, poll.result, poll.session.getHealth(), poll.pollTime) )
+                    unreachable.add(poll.endpoint.name);
+            }
+        } catch (InterruptedException interruptedException) {
+            logger.info("Interrupted, continuous polling stops");
+            Thread.currentThread().interrupt();
+        } finally {
+            scheduler.close();
+        }
+        return new TaskOutput("SNMP Monitor continuous polling stopped");
+    }
+
+    //reads the config, applies task arguments and sharding, and returns the endpoints this collector polls
+    private ConfigEndpoint[] loadEndpoints( Map<String, String> configMap, TaskExecutionContext taskExecutionContext ) throws TaskExecutionException {
         ConfigEndpoint[] endpoints = null;
         if( configMap.getOrDefault("configFile","unconfigured").equals("unconfigured") ){
             throw new TaskExecutionException("SNMP Config File Not Set, nothing to do");
         } else {
-            endpoints = readSNMPConfiguration(taskExecutionContext.getTaskDir() +"/"+ configMap.get("configFile") );
+            String configFileName = taskExecutionContext.getTaskDir() +"/"+ configMap.get("configFile");
+            if( this.configuration == null || !this.configuration.getFileName().equals(configFileName) ) {
+                this.configuration = new SNMPConfiguration(configFileName);
+                this.configurationGeneration = -1;
+            }
+            endpoints = this.configuration.getEndpoints();
             if( endpoints == null ) throw new TaskExecutionException("No End Points read from configuration, something must be wrong");
         }
-        if( this.analyticsAPIClient == null )
-            this.analyticsAPIClient = new Analytics( configMap.get("analytics_URL"), configMap.get("analytics_apiAccountName"), configMap.get("analytics_apiKey"));
-        if( configMap.containsKey("metricPrefix") ) metricPrefix = "Custom Metrics|"+ configMap.get("metricPrefix");
-        printMetric("up", 1,
-                MetricWriter.METRIC_AGGREGATION_TYPE_OBSERVATION,
-                MetricWriter.METRIC_TIME_ROLLUP_TYPE_SUM,
-                MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_COLLECTIVE
-        );
+        if( this.eventPublisher == null && "true".equalsIgnoreCase(configMap.getOrDefault("analytics_publishEvents","false").trim()) )
+            this.eventPublisher = createEventPublisher(configMap, taskExecutionContext.getTaskDir());
+        if( configMap.containsKey("metricPrefix") ) {
+            metricPrefix = "Custom Metrics|"+ configMap.get("metricPrefix");
+            if( !metricPrefix.endsWith("|") ) metricPrefix += "|";
+        }
 
+        if( this.sessionManager == null )
+            this.sessionManager = new SNMPSessionManager(getIntArgument(configMap, "snmpDispatcherThreads", 4),
+                    new CounterStore(getIntArgument(configMap, "maxCounterStates", 100000), getIntArgument(configMap, "counterStaleRuns", 10)), stats);
+        if( this.metricCache == null )
+            this.metricCache = new MetricCache(getIntArgument(configMap, "maxCachedMetrics", 200000), getIntArgument(configMap, "counterStaleRuns", 10));
+        this.sessionManager.setMetricPrefix(metricPrefix);
+        this.sessionManager.setHealthSettings(getIntArgument(configMap, "snmpMinTimeoutMillis", 500),
+                getIntArgument(configMap, "snmpTimeoutMillis", 5000),
+                getIntArgument(configMap, "snmpRetries", 3),
+                getIntArgument(configMap, "endpointFailureThreshold", 3),
+                getIntArgument(configMap, "endpointMaxProbeIntervalRuns", 10));
+        String engineCacheFile = configMap.getOrDefault("snmpEngineCacheFile", "").trim();
+        if( !"".equals(engineCacheFile) ) {
+            String passphrase = configMap.getOrDefault("snmpEngineCachePassphrase", "");
+            if( "".equals(passphrase) ) {
+                if( !engineCacheWarned ) logger.warn("snmpEngineCacheFile is set but snmpEngineCachePassphrase is not, v3 engines and keys are only cached in memory");
+                engineCacheWarned = true;
+            } else {
+                File file = new File(engineCacheFile);
+                if( !file.isAbsolute() ) file = new File(taskExecutionContext.getTaskDir(), engineCacheFile);
+                this.sessionManager.setEngineCacheFile(file, passphrase);
+            }
+        }
+        this.sessionManager.setMissingOidRetryMinutes(getIntArgument(configMap, "missingOidRetryMinutes", 60));
+        String reportFile = configMap.getOrDefault("capabilityReportFile", "").trim();
+        if( "".equals(reportFile) ) {
+            this.capabilityReportFile = null;
+        } else {
+            File file = new File(reportFile);
+            this.capabilityReportFile = file.isAbsolute() ? file : new File(taskExecutionContext.getTaskDir(), reportFile);
+        }
+        ShardSelector selector = ShardSelector.fromArguments(configMap);
+        boolean shardChanged = selector == null ? this.shardSelector != null : !selector.sameAs(this.shardSelector);
+        if( this.configuration.getGeneration() != this.configurationGeneration || shardChanged ) {
+            this.shardSelector = selector;
+            this.shardEndpoints = selector == null ? endpoints : selector.select(endpoints);
+            if( selector != null ) logger.info(String.format("Shard %s polls %d of %d endpoints", selector.getDescription(), shardEndpoints.length, endpoints.length));
+            this.sessionManager.retainOnly(shardEndpoints);
+            this.configurationGeneration = this.configuration.getGeneration();
+        }
+        updateTrapReceiver(configMap);
+        return this.shardEndpoints;
+    }
+
+    //traps are attributed by source address to every configured endpoint, not only this shard's
+    private void updateTrapReceiver( Map<String, String> configMap ) throws TaskExecutionException {
+        String listenAddress = configMap.getOrDefault("trapListenAddress", "").trim();
+        if( this.trapReceiver != null && !this.trapReceiver.getListenAddress().equals(listenAddress) ) {
+            this.trapReceiver.close();
+            this.trapReceiver = null;
+        }
+        if( "".equals(listenAddress) ) return;
+        if( this.trapReceiver == null ) {
+            try {
+                this.trapReceiver = new TrapReceiver(listenAddress, getIntArgument(configMap, "trapThreads", 4),
+                        getIntArgument(configMap, "trapQueueSize", 100000), stats);
+            } catch (IOException ioException) {
+                logger.warn(String.format("Could not listen for SNMP traps on %s, will try again next run: %s", listenAddress, ioException.getMessage()));
+                return;
+            }
+        }
+        this.trapReceiver.setEndpoints(this.configuration.getEndpoints(), configMap.getOrDefault("trapCommunities", ""));
+        if( eventPublisher != null ) this.trapReceiver.setPublisher(eventPublisher.getPublisher(), configMap.getOrDefault("analytics_trapSchema", "snmp_trap"));
+    }
+
+    //what each endpoint's agent does not have, rewritten only when that changed
+    private void writeCapabilityReport() {
+        if( capabilityReportFile == null ) return;
+        String report = new GsonBuilder().setPrettyPrinting().create().toJson(sessionManager.getCapabilityReport());
+        if( report.equals(lastCapabilityReport) ) return;
+        File temp = new File(capabilityReportFile.getPath() +".tmp");
+        try {
+            Files.write(temp.toPath(), report.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), capabilityReportFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastCapabilityReport = report;
+        } catch (IOException exception) {
+            logger.warn(String.format("Could not write the capability report %s: %s", capabilityReportFile, exception));
+        }
+    }
+
+    private void printTrapMetrics() {
+        if( trapReceiver == null ) return;
+        for( Map.Entry<String, Long> count : trapReceiver.takeCounts().entrySet() ) printMetricSum(count.getKey(), count.getValue());
+    }
+
+    private Map<ConfigEndpoint, SNMPAPI> getSessions( ConfigEndpoint[] endpoints, TaskExecutionContext taskExecutionContext ) {
+        Map<ConfigEndpoint, SNMPAPI> sessions = new LinkedHashMap<>();
         for( ConfigEndpoint endpoint : endpoints ) {
-            SNMPAPI snmpApiClient = null;
-            if ( !"unconfigured".equals(endpoint.snmpEndpoint.targetAddress)) {
-                try {
-                    snmpApiClient = new SNMPAPI(endpoint.snmpEndpoint, taskExecutionContext);
-                } catch (IOException ioException) {
-                    logger.warn(String.format("Could not configure SNMP settings, ignoring SNMP entirely :) " + ioException.getMessage()));
-                }
+            if ( "unconfigured".equals(endpoint.snmpEndpoint.targetAddress)) continue;
+            try {
+                sessions.put(endpoint, sessionManager.getSession(endpoint, taskExecutionContext));
+            } catch (IOException ioException) {
+                logger.warn(String.format("Could not configure SNMP settings, ignoring SNMP entirely :) " + ioException.getMessage()));
+            } catch (TaskExecutionException taskExecutionException) {
+                logger.warn(String.format("Could not configure SNMP for endpoint %s, skipping it: %s", endpoint.name, taskExecutionException.getMessage()));
+                printMetric(endpoint.name +"|up", 0,
+                        MetricWriter.METRIC_AGGREGATION_TYPE_OBSERVATION,
+                        MetricWriter.METRIC_TIME_ROLLUP_TYPE_CURRENT,
+                        MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_COLLECTIVE);
             }
+        }
+        return sessions;
+    }
 
-            if (snmpApiClient != null) {
-                Map<String, String> snmpData = snmpApiClient.getAllData();
-                for (String key : snmpData.keySet()) {
-                    printMetricCurrent(endpoint.name+"|"+key, snmpData.get(key));
-                }
-                //snmpApiClient.close();
+    //writes one endpoint's poll, returns false when the endpoint did not answer
+    private boolean writePollResult( ConfigEndpoint endpoint, PollResult pollResult, EndpointHealth health, long pollTime ) {
+        //down endpoints report up=0 instead of going silent
+        String endpointPath = pollResult.getPlan().getEndpointPath();
+        printMetricValue(endpointPath +"up", pollResult.isReachable() ? 1 : 0,
+                MetricWriter.METRIC_AGGREGATION_TYPE_OBSERVATION,
+                MetricWriter.METRIC_TIME_ROLLUP_TYPE_CURRENT,
+                MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_COLLECTIVE);
+        long responseTime = health.getSmoothedRtt();
+        if( responseTime >= 0 ) printMetricValue(endpointPath +"Response Time (ms)", responseTime,
+                MetricWriter.METRIC_AGGREGATION_TYPE_AVERAGE,
+                MetricWriter.METRIC_TIME_ROLLUP_TYPE_AVERAGE,
+                MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_INDIVIDUAL);
+        if( !pollResult.isReachable() ) return false;
+        stats.addPollTime(pollResult.getPollTime());
+        printMetricValue(endpointPath +"Poll Time (ms)", pollResult.getPollTime(),
+                MetricWriter.METRIC_AGGREGATION_TYPE_AVERAGE,
+                MetricWriter.METRIC_TIME_ROLLUP_TYPE_AVERAGE,
+                MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_INDIVIDUAL);
+        long now = System.currentTimeMillis();
+        for( int i = 0; i < pollResult.size(); i++ ) {
+            if( !pollResult.isPresent(i) ) continue;
+            ConfigEndpoint.OIDOptions changeOptions = pollResult.getChangeOptions(i);
+            String metricPath = pollResult.getMetricPath(i);
+            if( changeOptions == null ) {
+                printMetricValue(metricPath, pollResult.getValue(i),
+                        MetricWriter.METRIC_AGGREGATION_TYPE_OBSERVATION,
+                        MetricWriter.METRIC_TIME_ROLLUP_TYPE_CURRENT,
+                        MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_COLLECTIVE);
+                continue;
+            }
+            //decimal values are written x100, so is their deadband
+            double deadband = Math.max(0, changeOptions.deadband) * (metricPath.endsWith(ValueType.DECIMAL_SUFFIX) ? 100 : 1);
+            MetricWriter metricWriter = metricCache.getWriter(metricPath, pollResult.getValue(i), (long) Math.floor(deadband),
+                    changeOptions.heartbeatSecs * 1000L, now, currentWriter);
+            if( metricWriter == null ) {
+                stats.metricsSuppressed.increment();
+                continue;
             }
+            if( logger.isDebugEnabled() ) logger.debug(String.format("Print Metric: '%s'=%d", metricPath, pollResult.getValue(i)));
+            metricWriter.printMetric(Long.toString(pollResult.getValue(i)));
+            stats.metricsWritten.increment();
+        }
+        if( eventPublisher != null ) eventPublisher.publish(endpoint, pollResult, pollTime);
+        return true;
+    }
+
+    //the collector's own health under metricPrefix|Collector|, counts are since the last call
+    private void printCollectorMetrics( int configured, int polled, int late, int unreachable ) {
+        String collector = "Collector|";
+        long[] pollTimes = stats.takePollTimes();
+        printMetricCurrent(collector +"Endpoints|Configured", configured);
+        printMetricCurrent(collector +"Endpoints|Polled", polled - late - unreachable);
+        printMetricCurrent(collector +"Endpoints|Unreachable", unreachable);
+        printMetricCurrent(collector +"Endpoints|Skipped", configured - polled);
+        if( pollTimes.length > 0 ) {
+            long total = 0;
+            for( long pollTime : pollTimes ) total += pollTime;
+            printMetricAverage(collector +"Poll Time (ms)|Average", total / pollTimes.length);
+            printMetricAverage(collector +"Poll Time (ms)|Min", pollTimes[0]);
+            printMetricAverage(collector +"Poll Time (ms)|50th Percentile", CollectorStats.percentile(pollTimes, 50));
+            printMetricAverage(collector +"Poll Time (ms)|95th Percentile", CollectorStats.percentile(pollTimes, 95));
+            printMetricAverage(collector +"Poll Time (ms)|99th Percentile", CollectorStats.percentile(pollTimes, 99));
+            printMetricAverage(collector +"Poll Time (ms)|Max", pollTimes[pollTimes.length -1]);
+        }
+        printMetricSum(collector +"SNMP|PDUs Sent", stats.pdusSent.sumThenReset());
+        printMetricSum(collector +"SNMP|PDUs Received", stats.pdusReceived.sumThenReset());
+        printMetricSum(collector +"SNMP|Timeouts", stats.timeouts.sumThenReset());
+        printMetricSum(collector +"SNMP|TooBig Splits", stats.tooBigSplits.sumThenReset());
+        printMetricSum(collector +"SNMP|Send Errors", stats.sendErrors.sumThenReset());
+        printMetricCurrent(collector +"SNMP|Sessions", sessionManager.size());
+        printMetricCurrent(collector +"SNMP|Counter States", sessionManager.getCounterStore().size());
+        printMetricCurrent(collector +"SNMP|Cached Engines", sessionManager.getEngineCache().size());
+        printMetricCurrent(collector +"SNMP|Missing OIDs", sessionManager.getMissingOids());
+        printMetricCurrent(collector +"Cached Metric Writers", metricCache.size());
+        printMetricSum(collector +"Metrics Suppressed", stats.metricsSuppressed.sumThenReset());
+        if( trapReceiver != null ) {
+            printMetricSum(collector +"Traps|Received", stats.trapsReceived.sumThenReset());
+            printMetricSum(collector +"Traps|Rejected", stats.trapsRejected.sumThenReset());
+            printMetricSum(collector +"Traps|Dropped", stats.trapsDropped.sumThenReset());
+            printMetricSum(collector +"Traps|Unknown Sources", stats.trapsUnknownSource.sumThenReset());
+            printMetricSum(collector +"Traps|Informs Acknowledged", stats.informsAcknowledged.sumThenReset());
+            printMetricCurrent(collector +"Traps|Queue Depth", trapReceiver.getQueued());
+        }
+        if( eventPublisher != null ) {
+            AnalyticsPublisher publisher = eventPublisher.getPublisher();
+            long requests = stats.delta("publishRequests", publisher.getPublishRequests());
+            long publishMillis = stats.delta("publishMillis", publisher.getPublishMillis());
+            printMetricCurrent(collector +"Analytics|Queue Depth", publisher.getQueued());
+            printMetricSum(collector +"Analytics|Events Published", stats.delta("published", publisher.getPublished()));
+            printMetricSum(collector +"Analytics|Events Dropped", stats.delta("dropped", publisher.getDropped()));
+            printMetricSum(collector +"Analytics|Events Failed", stats.delta("failed", publisher.getFailed()));
+            printMetricSum(collector +"Analytics|Events Spooled", stats.delta("spooled", publisher.getSpooled()));
+            printMetricSum(collector +"Analytics|Batches Replayed", stats.delta("replayed", publisher.getReplayed()));
+            printMetricSum(collector +"Analytics|Publish Requests", requests);
+            if( requests > 0 ) printMetricAverage(collector +"Analytics|Publish Time (ms)", publishMillis / requests);
+            printMetricCurrent(collector +"Analytics|Spool Size (KB)", publisher.getSpoolSize() / 1024);
+        }
+        //last, so this run's count includes everything above, the write of this metric itself is not counted at all
+        printMetricSum(collector +"Metrics Written", stats.metricsWritten.sumThenReset());
+        stats.metricsWritten.decrement();
+    }
+
+    private PollEventPublisher createEventPublisher( Map<String, String> configMap, String taskDir ) {
+        String url = configMap.get("analytics_URL");
+        if( url == null || "".equals(url.trim()) ) {
+            logger.warn("analytics_publishEvents is set but analytics_URL is not, events will not be published");
+            return null;
+        }
+        this.analyticsAPIClient = new Analytics( url.trim(), configMap.getOrDefault("analytics_apiAccountName",""), configMap.getOrDefault("analytics_apiKey",""));
+        this.analyticsAPIClient.setSchemaCacheTimeout(getIntArgument(configMap, "analytics_schemaCacheTimeoutMinutes", 60) * 60 * 1000L);
+        this.analyticsAPIClient.setCompressRequests(!"false".equalsIgnoreCase(configMap.getOrDefault("analytics_compress","true").trim()));
+        AnalyticsPublisher analyticsPublisher = new AnalyticsPublisher(this.analyticsAPIClient,
+                getIntArgument(configMap, "analytics_maxQueueSize", 100000),
+                getIntArgument(configMap, "analytics_batchSize", 1000),
+                getIntArgument(configMap, "analytics_flushIntervalSecs", 10) * 1000L);
+        String spoolDir = configMap.get("analytics_spoolDir");
+        if( spoolDir != null && !"".equals(spoolDir.trim()) ) {
+            File spoolDirectory = new File(spoolDir.trim());
+            if( !spoolDirectory.isAbsolute() ) spoolDirectory = new File(taskDir, spoolDir.trim());
+            try {
+                analyticsPublisher.setSpool(new EventSpool(spoolDirectory,
+                        getIntArgument(configMap, "analytics_spoolMaxMB", 512) * 1024L * 1024L,
+                        getIntArgument(configMap, "analytics_spoolSegmentMB", 16) * 1024 * 1024,
+                        getIntArgument(configMap, "analytics_spoolMaxAgeHours", 24) * 60 * 60 * 1000L),
+                        getIntArgument(configMap, "analytics_spoolReplayPerSecond", 2));
+            } catch (IOException ioException) {
+                logger.warn(String.format("Could not open analytics spool %s, failed publishes will be dropped: %s", spoolDirectory, ioException.getMessage()));
+            }
+        }
+        return new PollEventPublisher(analyticsPublisher,
+                configMap.getOrDefault("analytics_endpointSchema", "snmp_endpoint"),
+                configMap.getOrDefault("analytics_walkSchemaPrefix", "snmp_"));
+    }
+
+    private long getPollingTimeLimit( Map<String, String> configMap ) {
+        long executionTimeout = getIntArgument(configMap, "executionTimeoutInSecs", 60) * 1000L;
+        return executionTimeout - Math.max(1000L, executionTimeout/10);
+    }
+
+    private int getIntArgument( Map<String, String> configMap, String name, int defaultValue ) {
+        String value = configMap.get(name);
+        if( value == null || "".equals(value.trim()) ) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException numberFormatException) {
+            logger.warn(String.format("Task argument %s is not a number '%s', using default %d", name, value, defaultValue));
+            return defaultValue;
         }
-        return new TaskOutput("SNMP Monitor Metric Upload Complete");
     }
 
     public void printMetricCurrent(String metricName, Object metricValue) {
@@ -86,6 +457,13 @@ public class SNMPMonitor extends AManagedMonitor {
                 MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_COLLECTIVE
         );
     }
+    public void printMetricAverage(String metricName, Object metricValue) {
+        printMetric(metricName, metricValue,
+                MetricWriter.METRIC_AGGREGATION_TYPE_AVERAGE,
+                MetricWriter.METRIC_TIME_ROLLUP_TYPE_AVERAGE,
+                MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_INDIVIDUAL
+        );
+    }
     public void printMetricSum(String metricName, Object metricValue) {
         printMetric(metricName, metricValue,
                 MetricWriter.METRIC_AGGREGATION_TYPE_OBSERVATION,
@@ -94,19 +472,30 @@ public class SNMPMonitor extends AManagedMonitor {
         );
     }
 
-    public void printMetric(String metricName, Object metricValue, String aggregation, String timeRollup, String cluster)
+    public void printMetric(String metricName, Object metricValue, String aggregation, String timeRollup, String cluster) {
+        printMetricPath(this.metricPrefix + metricName, metricValue, aggregation, timeRollup, cluster);
+    }
+
+    public void printMetricPath(String metricPath, Object metricValue, String aggregation, String timeRollup, String cluster)
     {
         if( Utility.isDecimalNumber(String.valueOf(metricValue))){
-            metricName += " (x100)";
+            metricPath += " (x100)";
             metricValue = Utility.decimalToLong(String.valueOf(metricValue));
         }
-        logger.info(String.format("Print Metric: '%s%s'=%s",this.metricPrefix, metricName, metricValue));
-        MetricWriter metricWriter = getMetricWriter(this.metricPrefix + metricName,
-                aggregation,
-                timeRollup,
-                cluster
-        );
+        if( logger.isDebugEnabled() ) logger.debug(String.format("Print Metric: '%s'=%s", metricPath, metricValue));
+        getCachedWriter(metricPath, aggregation, timeRollup, cluster).printMetric(String.valueOf(metricValue));
+        stats.metricsWritten.increment();
+    }
+
+    public void printMetricValue(String metricPath, long metricValue, String aggregation, String timeRollup, String cluster) {
+        if( logger.isDebugEnabled() ) logger.debug(String.format("Print Metric: '%s'=%d", metricPath, metricValue));
+        getCachedWriter(metricPath, aggregation, timeRollup, cluster).printMetric(Long.toString(metricValue));
+        stats.metricsWritten.increment();
+    }
 
-        metricWriter.printMetric(String.valueOf(metricValue));
+    //a metric path is always written with the same rollups, its writer is created once and kept in the metric cache
+    private MetricWriter getCachedWriter(String metricPath, String aggregation, String timeRollup, String cluster) {
+        if( metricCache == null ) return getMetricWriter(metricPath, aggregation, timeRollup, cluster);
+        return metricCache.getWriter(metricPath, path -> getMetricWriter(path, aggregation, timeRollup, cluster));
     }
 }
@@ -0,0 +1,194 @@
+package com.cisco.josouthe;
+
+import com.singularity.ee.agent.systemagent.api.TaskExecutionContext;
+import com.singularity.ee.agent.systemagent.api.exception.TaskExecutionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.snmp4j.Snmp;
+import org.snmp4j.fluent.SnmpBuilder;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.GenericAddress;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Long lived holder of the snmp sessions, all endpoints share one Snmp instance with a single udp transport
+ * and a fixed size dispatcher pool. Sessions are keyed by their endpoint configuration so an unchanged
+ * endpoint keeps its target (and v3 engine discovery) across execute() runs. An endpoint whose session can not be
+ * set up, usually a v3 engine discovery timing out on a dead device, is not retried on every run but backs off
+ * from one minute up to sixteen, since discovery blocks the caller. Discovered v3 engines and their localized keys
+ * are kept in an EngineCache, so a session that is rebuilt does not discover again.
+ */
+public class SNMPSessionManager {
+    private Logger logger = LogManager.getFormatterLogger();
+    private final int dispatcherThreads;
+    private final CounterStore counterStore;
+    private final CollectorStats stats;
+    private final EngineCache engineCache = new EngineCache();
+    private SnmpBuilder snmpBuilder;
+    private Snmp snmp;
+    private static final long SETUP_RETRY_MIN = 60000L, SETUP_RETRY_MAX = 16 * 60000L;
+    private final Map<String, SNMPAPI> sessions = new ConcurrentHashMap<>();
+    private final Map<String, long[]> failedSetups = new ConcurrentHashMap<>(); //key -> { next attempt, current delay }
+    private String metricPrefix = "";
+    private int minTimeout = 500, maxTimeout = 5000, retries = 3, failureThreshold = 3, maxProbeInterval = 10;
+    private static final long MISSING_RETRY_MAX = 24 * 3600000L;
+    private volatile long missingRetry = 3600000L;
+
+    public SNMPSessionManager( int dispatcherThreads, CounterStore counterStore ) {
+        this(dispatcherThreads, counterStore, new CollectorStats());
+    }
+
+    public SNMPSessionManager( int dispatcherThreads, CounterStore counterStore, CollectorStats stats ) {
+        this.dispatcherThreads = Math.max(1, dispatcherThreads);
+        this.counterStore = counterStore;
+        this.stats = stats;
+    }
+
+    public CounterStore getCounterStore() { return counterStore; }
+    public CollectorStats getStats() { return stats; }
+    public EngineCache getEngineCache() { return engineCache; }
+
+    private synchronized Snmp getSnmp() throws IOException {
+        if( snmp == null ) {
+            snmpBuilder = new SnmpBuilder().udp().threads(dispatcherThreads).v1().v2c().v3().usm();
+            snmp = snmpBuilder.build();
+            snmp.getMessageDispatcher().addCounterListener( event -> {
+                if( SnmpConstants.snmpInPkts.equals(event.getOid()) ) stats.pdusReceived.increment();
+            });
+            logger.info(String.format("Started shared SNMP transport with %d dispatcher threads", dispatcherThreads));
+        }
+        return snmp;
+    }
+
+    public SNMPAPI getSession( ConfigEndpoint endpoint, TaskExecutionContext taskExecutionContext ) throws TaskExecutionException, IOException {
+        String key = endpoint.getSessionKey();
+        SNMPAPI session = sessions.get(key);
+        if( session != null && session.needsDiscovery() ) {
+            logger.info(String.format("Rebuilding SNMP session for endpoint %s, its agent's engine has changed", endpoint.name));
+            sessions.remove(key, session);
+            session = null;
+        }
+        if( session == null ) {
+            long[] failedSetup = failedSetups.get(key);
+            long now = System.currentTimeMillis();
+            if( failedSetup != null && now < failedSetup[0] )
+                throw new TaskExecutionException(String.format("SNMP session setup failed recently, next attempt in %d seconds", (failedSetup[0] - now) / 1000));
+            try {
+                session = new SNMPAPI(endpoint, metricPrefix, snmpBuilder(), getSnmp(), counterStore, stats, engineCache,
+                        new EndpointHealth(minTimeout, maxTimeout, failureThreshold, maxProbeInterval),
+                        new EndpointCapabilities(missingRetry, Math.max(missingRetry, MISSING_RETRY_MAX)), retries, taskExecutionContext);
+            } catch (TaskExecutionException | IOException exception) {
+                long delay = failedSetup == null ? SETUP_RETRY_MIN : Math.min(SETUP_RETRY_MAX, failedSetup[1] * 2);
+                failedSetups.put(key, new long[] { now + delay, delay });
+                throw exception;
+            }
+            failedSetups.remove(key);
+            sessions.put(key, session);
+            logger.debug(String.format("Created SNMP session for endpoint %s", endpoint.name));
+        }
+        return session;
+    }
+
+    //timeouts in milliseconds, the request timeout adapts between min and max, max is also used until the first answer
+    public synchronized void setHealthSettings( int minTimeout, int maxTimeout, int retries, int failureThreshold, int maxProbeInterval ) {
+        if( minTimeout != this.minTimeout || maxTimeout != this.maxTimeout || retries != this.retries
+                || failureThreshold != this.failureThreshold || maxProbeInterval != this.maxProbeInterval ) {
+            if( !sessions.isEmpty() ) logger.info("SNMP timeout settings changed, rebuilding all SNMP sessions");
+            sessions.clear();
+            this.minTimeout = minTimeout;
+            this.maxTimeout = maxTimeout;
+            this.retries = Math.max(0, retries);
+            this.failureThreshold = failureThreshold;
+            this.maxProbeInterval = maxProbeInterval;
+        }
+    }
+
+    private synchronized SnmpBuilder snmpBuilder() throws IOException {
+        getSnmp();
+        return snmpBuilder;
+    }
+
+    //poll plans hold full metric paths, so a new prefix means every session has to be rebuilt
+    public void setMetricPrefix( String metricPrefix ) {
+        if( !this.metricPrefix.equals(metricPrefix) ) {
+            if( !sessions.isEmpty() ) logger.info(String.format("Metric prefix changed to %s, rebuilding all SNMP sessions", metricPrefix));
+            sessions.clear();
+            this.metricPrefix = metricPrefix;
+        }
+    }
+
+    public void retainOnly( ConfigEndpoint[] endpoints ) {
+        Set<String> keys = new HashSet<>(), addresses = new HashSet<>();
+        for( ConfigEndpoint endpoint : endpoints ) {
+            keys.add(endpoint.getSessionKey());
+            Address address = GenericAddress.parse(endpoint.snmpEndpoint.targetAddress);
+            if( address != null ) addresses.add(address.toString());
+        }
+        failedSetups.keySet().retainAll(keys);
+        engineCache.retainOnly(addresses);
+        Iterator<Map.Entry<String, SNMPAPI>> it = sessions.entrySet().iterator();
+        while( it.hasNext() ) {
+            Map.Entry<String, SNMPAPI> entry = it.next();
+            if( !keys.contains(entry.getKey()) ) {
+                it.remove();
+                logger.info(String.format("Evicted SNMP session for %s, it is no longer in the configuration", entry.getValue().getAddress()));
+            }
+        }
+    }
+
+    public int size() { return sessions.size(); }
+
+    //how long an OID the agent does not have is left out before it is asked for again, doubling up to a day; for new sessions
+    public void setMissingOidRetryMinutes( int minutes ) {
+        this.missingRetry = Math.max(1, minutes) * 60000L;
+    }
+
+    public int getMissingOids() {
+        int missing = 0;
+        for( SNMPAPI session : sessions.values() ) missing += session.getCapabilities().size();
+        return missing;
+    }
+
+    //endpoint name -> what its agent does not have, only endpoints missing something are listed
+    public Map<String, List<EndpointCapabilities.Report>> getCapabilityReport() {
+        Map<String, List<EndpointCapabilities.Report>> report = new TreeMap<>();
+        for( SNMPAPI session : sessions.values() ) {
+            List<EndpointCapabilities.Report> missing = session.getCapabilities().getReport();
+            if( !missing.isEmpty() ) report.put(session.getName(), missing);
+        }
+        return report;
+    }
+
+    //keeps learned v3 engines and localized keys across restarts, the passphrase encrypts the file
+    public void setEngineCacheFile( File file, String passphrase ) {
+        engineCache.setFile(file, passphrase);
+    }
+
+    public synchronized void saveEngineCache() {
+        if( snmp != null ) engineCache.save(snmp.getUSM().getTimeTable());
+    }
+
+    public synchronized void close() {
+        sessions.clear();
+        failedSetups.clear();
+        if( snmp != null ) {
+            try {
+                snmp.close();
+            } catch (IOException ignore) {
+                //ignored
+            }
+            snmp = null;
+            snmpBuilder = null;
+        }
+    }
+}
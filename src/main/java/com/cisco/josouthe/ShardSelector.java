@@ -0,0 +1,119 @@
+package com.cisco.josouthe;
+
+import com.singularity.ee.agent.systemagent.api.exception.TaskExecutionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Splits the endpoints of a shared config file across several collectors with rendezvous hashing on the endpoint
+ * name: every member scores every endpoint and the highest score polls it, so adding or removing a member only moves
+ * the endpoints that member gains or loses, about 1/n of them. Members are named in shardMembers (this instance is
+ * shardMember, or the local host name), or numbered 0..shardCount-1 with this instance being shardIndex. Metric
+ * paths are built from the endpoint name alone, so a device keeps its metrics whichever member polls it. A single
+ * member polls everything, a collector that is not one of the members polls nothing.
+ */
+public class ShardSelector {
+    private static final Logger logger = LogManager.getFormatterLogger();
+    private static volatile String localHostName = null;
+    private final String[] members;
+    private final long[] memberHashes;
+    private final int self;
+    private final String selfName;
+    private final String description;
+
+    private ShardSelector( List<String> members, String self ) {
+        this.members = members.toArray(new String[0]);
+        this.memberHashes = new long[this.members.length];
+        int index = -1;
+        for( int i = 0; i < this.members.length; i++ ) {
+            memberHashes[i] = CounterStore.mix(CounterStore.seed(this.members[i]));
+            if( this.members[i].equals(self) ) index = i;
+        }
+        this.self = index;
+        this.selfName = self;
+        this.description = self +" of "+ members;
+    }
+
+    //null when no sharding is configured and every endpoint is polled here
+    public static ShardSelector fromArguments( Map<String,String> configMap ) throws TaskExecutionException {
+        String memberList = configMap.getOrDefault("shardMembers", "").trim();
+        if( !"".equals(memberList) ) {
+            Set<String> members = new LinkedHashSet<>();
+            for( String member : memberList.split(",") ) if( !"".equals(member.trim()) ) members.add(member.trim());
+            String self = configMap.getOrDefault("shardMember", "").trim();
+            if( "".equals(self) ) {
+                try {
+                    self = getLocalHostName();
+                } catch (UnknownHostException unknownHostException) {
+                    throw new TaskExecutionException("shardMember is not set and the local host name is not known: "+ unknownHostException.getMessage());
+                }
+            }
+            return members.isEmpty() ? null : new ShardSelector(new ArrayList<>(members), self);
+        }
+        int shardCount = parse(configMap, "shardCount", 1);
+        if( shardCount <= 1 ) return null;
+        int shardIndex = parse(configMap, "shardIndex", 0);
+        if( shardIndex < 0 || shardIndex >= shardCount )
+            throw new TaskExecutionException(String.format("shardIndex %d must be between 0 and shardCount-1 (%d)", shardIndex, shardCount-1));
+        List<String> members = new ArrayList<>(shardCount);
+        for( int i = 0; i < shardCount; i++ ) members.add(String.valueOf(i));
+        return new ShardSelector(members, String.valueOf(shardIndex));
+    }
+
+    //looked up once, getLocalHost() can block on DNS and the arguments are read again every run
+    private static String getLocalHostName() throws UnknownHostException {
+        String name = localHostName;
+        if( name == null ) localHostName = name = InetAddress.getLocalHost().getHostName();
+        return name;
+    }
+
+    private static int parse( Map<String,String> configMap, String name, int defaultValue ) throws TaskExecutionException {
+        String value = configMap.get(name);
+        if( value == null || "".equals(value.trim()) ) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException numberFormatException) {
+            throw new TaskExecutionException(String.format("Task argument %s is not a number '%s'", name, value));
+        }
+    }
+
+    public boolean isMine( String endpointName ) {
+        long nameHash = CounterStore.mix(CounterStore.seed(endpointName));
+        int best = 0;
+        long bestScore = 0;
+        for( int i = 0; i < members.length; i++ ) {
+            long score = CounterStore.mix(memberHashes[i] ^ nameHash);
+            if( i == 0 || Long.compareUnsigned(score, bestScore) > 0 ) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return best == self;
+    }
+
+    public ConfigEndpoint[] select( ConfigEndpoint[] endpoints ) {
+        if( self < 0 ) {
+            logger.error(String.format("This collector '%s' is not one of the shard members %s, it polls no endpoints until shardMember or shardMembers is corrected", selfName, Arrays.toString(members)));
+            return new ConfigEndpoint[0];
+        }
+        List<ConfigEndpoint> mine = new ArrayList<>(endpoints.length / members.length + 16);
+        for( ConfigEndpoint endpoint : endpoints ) if( isMine(endpoint.name) ) mine.add(endpoint);
+        return mine.toArray(new ConfigEndpoint[0]);
+    }
+
+    public String getDescription() { return description; }
+
+    //selectors built from the same arguments pick the same endpoints
+    public boolean sameAs( ShardSelector other ) {
+        return other != null && description.equals(other.description);
+    }
+}
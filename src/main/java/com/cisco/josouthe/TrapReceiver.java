@@ -0,0 +1,342 @@
+package com.cisco.josouthe;
+
+import com.cisco.josouthe.analytics.AnalyticsPublisher;
+import com.cisco.josouthe.analytics.AnalyticsSchemaException;
+import com.cisco.josouthe.analytics.Schema;
+import com.singularity.ee.agent.systemagent.api.exception.TaskExecutionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.snmp4j.CommandResponder;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.MessageException;
+import org.snmp4j.PDU;
+import org.snmp4j.PDUv1;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.CounterSupport;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.mp.MessageProcessingModel;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.security.SecurityModel;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmUser;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.GenericAddress;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.util.MultiThreadedMessageDispatcher;
+import org.snmp4j.util.ThreadPool;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Listens for traps and INFORMs so devices can push link downs and threshold crossings instead of waiting for the
+ * next poll. Packets are decoded on a fixed pool of dispatcher threads, v1/v2c communities are checked against
+ * trapCommunities (or the communities of the configured endpoints) and v3 notifications are authenticated by the USM
+ * with the users of the configured v3 endpoints. Accepted traps go into a bounded queue that a single thread drains
+ * in batches, counting them per endpoint and trap and publishing them as events. When the queue is full traps are
+ * dropped and INFORMs are not acknowledged, so the device sends them again later; while all dispatcher threads are
+ * busy the socket buffer fills and the kernel drops the rest, memory use stays flat however hard a storm hits.
+ */
+public class TrapReceiver implements CommandResponder, Runnable {
+    private static final Logger logger = LogManager.getFormatterLogger();
+    private static final OID SNMP_TRAPS = new OID("1.3.6.1.6.3.1.1.5");
+    private static final String[] GENERIC_TRAPS = { "coldStart", "warmStart", "linkDown", "linkUp", "authenticationFailure", "egpNeighborLoss" };
+    private static final Set<OID> USM_FAILURES = new HashSet<>(Arrays.asList(SnmpConstants.usmStatsUnknownUserNames,
+            SnmpConstants.usmStatsWrongDigests, SnmpConstants.usmStatsDecryptionErrors, SnmpConstants.usmStatsUnsupportedSecLevels));
+    private static final int RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024, BATCH_SIZE = 1000, MAX_COUNTERS = 10000, MAX_VARBIND_TEXT = 4096;
+    private final String listenAddress;
+    private final CollectorStats stats;
+    private final BlockingQueue<Trap> queue;
+    private final ThreadPool threadPool;
+    private final USM usm;
+    private final Snmp snmp;
+    private final Thread consumer;
+    private volatile boolean running = true;
+    private volatile Map<InetAddress, String> endpointNames = Collections.emptyMap();
+    private volatile Set<String> communities = Collections.emptySet(); //null accepts any community
+    private volatile AnalyticsPublisher publisher = null;
+    private volatile Schema schema = null;
+    private ConfigEndpoint[] endpoints = null;
+    private String communityList = null;
+    private Map<String, Long> counts = new HashMap<>(); //endpoint|Traps|trap -> count since takeCounts()
+
+    public TrapReceiver( String listenAddress, int threads, int queueSize, CollectorStats stats ) throws IOException {
+        Address address = GenericAddress.parse(listenAddress);
+        if( !(address instanceof UdpAddress) ) throw new IOException("Trap listen address must be a udp address, e.g. udp:0.0.0.0/162, not "+ listenAddress);
+        this.listenAddress = listenAddress;
+        this.stats = stats;
+        this.queue = new ArrayBlockingQueue<>(Math.max(BATCH_SIZE, queueSize));
+        CounterSupport counterSupport = new CounterSupport();
+        counterSupport.addCounterListener( event -> {
+            if( USM_FAILURES.contains(event.getOid()) ) stats.trapsRejected.increment();
+        });
+        this.usm = new USM(new SecurityProtocols(SecurityProtocols.SecurityProtocolSet.defaultSecurity), new OctetString(MPv3.createLocalEngineID()), 0, counterSupport);
+        this.threadPool = ThreadPool.create("SNMPTrap", Math.max(1, threads));
+        MessageDispatcher dispatcher = new MultiThreadedMessageDispatcher(threadPool, new MessageDispatcherImpl());
+        dispatcher.addMessageProcessingModel(new MPv1());
+        dispatcher.addMessageProcessingModel(new MPv2c());
+        dispatcher.addMessageProcessingModel(new MPv3(usm));
+        DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping((UdpAddress) address, true);
+        transport.setReceiveBufferSize(RECEIVE_BUFFER_BYTES);
+        this.snmp = new Snmp(dispatcher, transport);
+        this.snmp.addCommandResponder(this);
+        try {
+            this.snmp.listen();
+        } catch (IOException ioException) {
+            threadPool.cancel();
+            throw ioException;
+        }
+        this.consumer = new Thread(this, "SNMPTrapConsumer");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+        logger.info(String.format("Listening for SNMP traps on %s with %d dispatcher threads", listenAddress, Math.max(1, threads)));
+    }
+
+    public String getListenAddress() { return listenAddress; }
+
+    public int getQueued() { return queue.size(); }
+
+    //maps source addresses to endpoint names and loads communities and v3 users, only redone when either changes
+    public synchronized void setEndpoints( ConfigEndpoint[] endpoints, String communityList ) {
+        if( endpoints == this.endpoints && communityList.equals(this.communityList) ) return;
+        Map<InetAddress, String> names = new HashMap<>();
+        Set<String> endpointCommunities = new HashSet<>();
+        usm.removeAllUsers();
+        for( ConfigEndpoint endpoint : endpoints ) {
+            ConfigEndpoint.SNMPEndpoint snmpEndpoint = endpoint.snmpEndpoint;
+            if( "unconfigured".equals(snmpEndpoint.targetAddress) ) continue;
+            Address address = GenericAddress.parse(snmpEndpoint.targetAddress);
+            if( address instanceof IpAddress ) names.putIfAbsent(((IpAddress) address).getInetAddress(), endpoint.name);
+            if( snmpEndpoint.version.startsWith("3") ) {
+                try {
+                    addUser(snmpEndpoint);
+                } catch (TaskExecutionException taskExecutionException) {
+                    logger.warn(String.format("Not accepting v3 traps from %s: %s", endpoint.name, taskExecutionException.getMessage()));
+                }
+            } else {
+                endpointCommunities.add(snmpEndpoint.communityName);
+            }
+        }
+        Set<String> allowed = null;
+        if( "".equals(communityList.trim()) ) {
+            allowed = endpointCommunities;
+        } else if( !"*".equals(communityList.trim()) ) {
+            allowed = new HashSet<>();
+            for( String community : communityList.split(",") ) if( !"".equals(community.trim()) ) allowed.add(community.trim());
+        }
+        this.endpointNames = names;
+        this.communities = allowed;
+        this.endpoints = endpoints;
+        this.communityList = communityList;
+    }
+
+    //added without an engine ID, the USM localizes the keys for each device's engine as its traps arrive
+    private void addUser( ConfigEndpoint.SNMPEndpoint snmpEndpoint ) throws TaskExecutionException {
+        if( snmpEndpoint.securityName == null || "".equals(snmpEndpoint.securityName) ) throw new TaskExecutionException("no securityName");
+        OID authProtocol = null, privProtocol = null;
+        if( snmpEndpoint.authPassphrase != null && !"".equals(snmpEndpoint.authPassphrase) )
+            authProtocol = SNMPAPI.getAuthProtocol(snmpEndpoint.authProtocol).getProtocolID();
+        if( authProtocol != null && snmpEndpoint.privPassphrase != null && !"".equals(snmpEndpoint.privPassphrase) )
+            privProtocol = SNMPAPI.getPrivProtocol(snmpEndpoint.privProtocol).getProtocolID();
+        usm.addUser(new UsmUser(new OctetString(snmpEndpoint.securityName),
+                authProtocol, authProtocol == null ? null : new OctetString(snmpEndpoint.authPassphrase),
+                privProtocol, privProtocol == null ? null : new OctetString(snmpEndpoint.privPassphrase)));
+    }
+
+    public synchronized void setPublisher( AnalyticsPublisher publisher, String schemaName ) {
+        if( publisher == this.publisher && this.schema != null && this.schema.name.equals(schemaName) ) return;
+        try {
+            Schema schema = new Schema(schemaName);
+            schema.addField("endpointName", "");
+            schema.addField("sourceAddress", "");
+            schema.addField("snmpVersion", "");
+            schema.addField("trapOid", "");
+            schema.addField("trapName", "");
+            schema.addField("varbinds", "");
+            schema.addField("receiveTime", new Date());
+            this.schema = schema;
+            this.publisher = publisher;
+        } catch (AnalyticsSchemaException analyticsSchemaException) {
+            logger.warn("Trap events will not be published, bad schema %s: %s", schemaName, analyticsSchemaException.getMessage());
+        }
+    }
+
+    @Override
+    public <A extends Address> void processPdu( CommandResponderEvent<A> event ) {
+        PDU pdu = event.getPDU();
+        if( pdu == null || (pdu.getType() != PDU.TRAP && pdu.getType() != PDU.V1TRAP && pdu.getType() != PDU.INFORM) ) return;
+        event.setProcessed(true);
+        stats.trapsReceived.increment();
+        Set<String> allowed = communities;
+        if( event.getSecurityModel() != SecurityModel.SECURITY_MODEL_USM && allowed != null && !allowed.contains(new String(event.getSecurityName())) ) {
+            stats.trapsRejected.increment();
+            return;
+        }
+        if( !queue.offer(new Trap(event.getPeerAddress(), event.getMessageProcessingModel(), pdu)) ) {
+            stats.trapsDropped.increment();
+            return;
+        }
+        if( pdu.getType() == PDU.INFORM ) acknowledge(event);
+    }
+
+    private <A extends Address> void acknowledge( CommandResponderEvent<A> event ) {
+        PDU response = (PDU) event.getPDU().clone();
+        response.setType(PDU.RESPONSE);
+        response.setErrorStatus(PDU.noError);
+        response.setErrorIndex(0);
+        try {
+            event.getMessageDispatcher().returnResponsePdu(event.getMessageProcessingModel(), event.getSecurityModel(),
+                    event.getSecurityName(), event.getSecurityLevel(), response, event.getMaxSizeResponsePDU(),
+                    event.getStateReference(), new StatusInformation());
+            stats.informsAcknowledged.increment();
+        } catch (MessageException messageException) {
+            logger.debug("Could not acknowledge INFORM from %s: %s", event.getPeerAddress(), messageException.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Trap> batch = new ArrayList<>(BATCH_SIZE);
+        while( running ) {
+            try {
+                Trap first = queue.poll(1, TimeUnit.SECONDS);
+                if( first == null ) continue;
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE -1);
+                process(batch);
+            } catch (InterruptedException interruptedException) {
+                if( !running ) break;
+            } catch (RuntimeException runtimeException) {
+                logger.warn("Could not process %d traps: %s", batch.size(), runtimeException.toString());
+            }
+            batch.clear();
+        }
+    }
+
+    private void process( List<Trap> batch ) {
+        Map<InetAddress, String> names = endpointNames;
+        AnalyticsPublisher publisher = this.publisher;
+        Schema schema = this.schema;
+        String[] endpointName = new String[batch.size()], trapName = new String[batch.size()];
+        for( int i = 0; i < batch.size(); i++ ) {
+            Trap trap = batch.get(i);
+            endpointName[i] = trap.source instanceof IpAddress ? names.get(((IpAddress) trap.source).getInetAddress()) : null;
+            trapName[i] = getTrapName(trap.trapOid);
+            if( endpointName[i] == null ) stats.trapsUnknownSource.increment();
+            if( publisher != null ) publisher.publish(schema, toEvent(trap, endpointName[i], trapName[i]));
+        }
+        synchronized (this) {
+            for( int i = 0; i < batch.size(); i++ ) {
+                if( endpointName[i] == null ) continue;
+                String key = endpointName[i] +"|Traps|"+ trapName[i];
+                //a device sending endless distinct trap oids does not grow the metric count without bounds
+                if( counts.size() >= MAX_COUNTERS && !counts.containsKey(key) ) key = endpointName[i] +"|Traps|Other";
+                counts.merge(key, 1L, Long::sum);
+            }
+        }
+    }
+
+    //trap counts per metric name since the last call, written as sums by execute()
+    public synchronized Map<String, Long> takeCounts() {
+        Map<String, Long> taken = counts;
+        counts = new HashMap<>();
+        return taken;
+    }
+
+    private Map<String, String> toEvent( Trap trap, String endpointName, String trapName ) {
+        Map<String, String> event = new HashMap<>();
+        event.put("endpointName", endpointName == null ? "" : endpointName);
+        event.put("sourceAddress", String.valueOf(trap.source));
+        event.put("snmpVersion", trap.version == MessageProcessingModel.MPv3 ? "v3" : trap.version == MessageProcessingModel.MPv1 ? "v1" : "v2c");
+        event.put("trapOid", trap.trapOid);
+        event.put("trapName", trapName);
+        event.put("receiveTime", String.valueOf(trap.time));
+        StringBuilder varbinds = new StringBuilder();
+        for( VariableBinding variableBinding : trap.variableBindings ) {
+            if( variableBinding.getOid().equals(SnmpConstants.sysUpTime) || variableBinding.getOid().equals(SnmpConstants.snmpTrapOID) ) continue;
+            if( varbinds.length() > 0 ) varbinds.append("; ");
+            varbinds.append(variableBinding.getOid()).append('=').append(variableBinding.toValueString());
+            if( varbinds.length() >= MAX_VARBIND_TEXT ) {
+                varbinds.setLength(MAX_VARBIND_TEXT);
+                break;
+            }
+        }
+        event.put("varbinds", varbinds.toString());
+        return event;
+    }
+
+    //v1 traps are translated to their v2 trap oid as in RFC 3584
+    static String getTrapOid( PDU pdu ) {
+        if( pdu instanceof PDUv1 ) {
+            PDUv1 v1 = (PDUv1) pdu;
+            if( v1.getGenericTrap() != PDUv1.ENTERPRISE_SPECIFIC ) return SNMP_TRAPS +"."+ (v1.getGenericTrap() +1);
+            return v1.getEnterprise() +".0."+ v1.getSpecificTrap();
+        }
+        Variable trapOid = pdu.getVariable(SnmpConstants.snmpTrapOID);
+        return trapOid == null ? "unknown" : trapOid.toString();
+    }
+
+    static String getTrapName( String trapOid ) {
+        String prefix = SNMP_TRAPS +".";
+        if( trapOid.startsWith(prefix) ) {
+            try {
+                int generic = Integer.parseInt(trapOid.substring(prefix.length()));
+                if( generic >= 1 && generic <= GENERIC_TRAPS.length ) return GENERIC_TRAPS[generic -1];
+            } catch (NumberFormatException ignore) {
+                //not one of the generic traps
+            }
+        }
+        return trapOid;
+    }
+
+    public void close() {
+        running = false;
+        consumer.interrupt();
+        try {
+            snmp.close();
+        } catch (IOException ignore) {
+            //ignored
+        }
+        threadPool.cancel();
+        logger.info(String.format("Stopped listening for SNMP traps on %s", listenAddress));
+    }
+
+    private static class Trap {
+        private final long time = System.currentTimeMillis();
+        private final Address source;
+        private final int version;
+        private final String trapOid;
+        private final List<? extends VariableBinding> variableBindings;
+
+        private Trap( Address source, int version, PDU pdu ) {
+            this.source = source;
+            this.version = version;
+            this.trapOid = getTrapOid(pdu);
+            this.variableBindings = pdu.getVariableBindings();
+        }
+    }
+}
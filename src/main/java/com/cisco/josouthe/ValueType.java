@@ -0,0 +1,97 @@
+package com.cisco.josouthe;
+
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.SMIConstants;
+import org.snmp4j.smi.Variable;
+
+/*
+ * How a returned snmp Variable turns into the long written to the MetricWriter. It is resolved from the
+ * first value seen for an OID and then kept on the plan, so the per value path is a switch and some digit
+ * arithmetic, no regex, boxing or Double parsing. Decimal strings, like the load averages in UCD-SNMP-MIB,
+ * are reported multiplied by 100 under a "(x100)" metric name.
+ */
+public enum ValueType {
+    NUMBER, COUNTER32, COUNTER64, NUMBER_STRING, DECIMAL_STRING, UNSUPPORTED;
+
+    public static final long INVALID = Long.MIN_VALUE;
+    public static final String DECIMAL_SUFFIX = " (x100)";
+
+    public static ValueType of( Variable variable ) {
+        switch (variable.getSyntax()) {
+            case SMIConstants.SYNTAX_INTEGER32:
+            case SMIConstants.SYNTAX_GAUGE32:
+            case SMIConstants.SYNTAX_TIMETICKS:
+                return NUMBER;
+            case SMIConstants.SYNTAX_COUNTER32:
+                return COUNTER32;
+            case SMIConstants.SYNTAX_COUNTER64:
+                return COUNTER64;
+            case SMIConstants.SYNTAX_OCTET_STRING: {
+                OctetString octetString = (OctetString) variable;
+                int length = octetString.length();
+                boolean digits = false, decimal = false;
+                for( int i = 0; i < length; i++ ) {
+                    byte c = octetString.get(i);
+                    if( c >= '0' && c <= '9' ) {
+                        digits = true;
+                    } else if( c == '.' && !decimal && digits ) {
+                        decimal = true;
+                    } else if( !(c == '-' && i == 0) ) {
+                        return UNSUPPORTED;
+                    }
+                }
+                if( !digits ) return UNSUPPORTED;
+                return decimal ? DECIMAL_STRING : NUMBER_STRING;
+            }
+            default:
+                return UNSUPPORTED;
+        }
+    }
+
+    public boolean isScaled() { return this == DECIMAL_STRING; }
+
+    public long toLong( Variable variable ) {
+        switch (this) {
+            case NUMBER:
+            case COUNTER32:
+            case COUNTER64:
+                return variable.toLong();
+            case NUMBER_STRING: return parse(variable, false);
+            case DECIMAL_STRING: return parse(variable, true);
+            default: return INVALID;
+        }
+    }
+
+    //digits with an optional sign and fraction, the fraction is truncated to two places when scaled and dropped otherwise
+    private static long parse( Variable variable, boolean scaled ) {
+        if( variable.getSyntax() != SMIConstants.SYNTAX_OCTET_STRING ) return INVALID;
+        OctetString octetString = (OctetString) variable;
+        int length = octetString.length();
+        long value = 0;
+        int fraction = -1;
+        boolean negative = false, digits = false;
+        for( int i = 0; i < length; i++ ) {
+            byte c = octetString.get(i);
+            if( c >= '0' && c <= '9' ) {
+                digits = true;
+                if( fraction < 0 ) {
+                    value = value*10 + (c - '0');
+                } else if( scaled && fraction < 2 ) {
+                    value = value*10 + (c - '0');
+                    fraction++;
+                }
+            } else if( c == '.' && fraction < 0 ) {
+                fraction = 0;
+            } else if( c == '-' && i == 0 ) {
+                negative = true;
+            } else {
+                return INVALID;
+            }
+        }
+        if( !digits ) return INVALID;
+        if( scaled ) {
+            for( int f = Math.max(fraction, 0); f < 2; f++ ) value *= 10;
+        }
+        return negative ? -value : value;
+    }
+}
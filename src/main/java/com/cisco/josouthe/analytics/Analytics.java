@@ -2,15 +2,21 @@ package com.cisco.josouthe.analytics;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
 import okhttp3.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 
 public class Analytics {
@@ -19,18 +25,29 @@ public class Analytics {
     public String baseUrl, APIAccountName, APIKey;
     private Gson gson = new GsonBuilder().setPrettyPrinting().create();
     private OkHttpClient okHttpClient;
+    private final Map<String, CachedSchema> schemaCache = new ConcurrentHashMap<>();
+    private long schemaCacheTimeout = 60*60*1000L;
+    private boolean compressRequests = true;
+    private int maxRetries = 5;
+    private long retryBaseDelay = 500L, retryMaxDelay = 30*1000L;
 
     public Analytics(String urlString, String APIAccountName, String APIKey) {
         if( !urlString.endsWith("/") ) urlString+="/";
         this.baseUrl = urlString;
         this.APIAccountName = APIAccountName;
         this.APIKey = APIKey;
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        //one background publisher posts most of the traffic, keep a few connections warm across the publish interval
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(4, 5, TimeUnit.MINUTES))
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .writeTimeout(30, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true);
         okHttpClient = builder.build();
     }
 
     protected String getRequest( String urlRequest ) throws IOException {
-        return executeRequest( "GET", urlRequest, null);
+        return executeRequest( "GET", urlRequest, (RequestBody) null);
     }
 
     protected String postRequest( String url, String body) throws IOException {
@@ -40,60 +57,92 @@ public class Analytics {
     protected String executeRequest( String method, String urlRequest, String body) throws IOException {
         RequestBody requestBody = null;
         if( body != null ) {
-            requestBody = RequestBody.create(MediaType.parse("application/vnd.appd.events+json;v=2"), body);
+            requestBody = RequestBody.create(SchemaRequestBody.EVENTS_MEDIA_TYPE, body);
         }
-        Request request = new Request.Builder()
+        return executeRequest(method, urlRequest, requestBody);
+    }
+
+    //the reply body of a 2xx answer, any other status throws with the reply so an error body is never taken for data
+    protected String executeRequest( String method, String urlRequest, RequestBody requestBody) throws IOException {
+        Request request = newRequest(method, urlRequest, requestBody).build();
+        logger.trace("Request %s",request.toString());
+        try (Response response = okHttpClient.newCall(request).execute()) {
+            String json = response.body() == null ? "" : response.body().string();
+            logger.trace("Response Body: %s",json);
+            if( !response.isSuccessful() )
+                throw new AnalyticsRequestException(String.format("%s %s failed with http %d %s", method, urlRequest, response.code(), json), response.code(), json);
+            return json;
+        }
+    }
+
+    private Request.Builder newRequest( String method, String urlRequest, RequestBody requestBody ) {
+        return new Request.Builder()
                 .url( this.baseUrl + urlRequest)
                 .method(method, requestBody)
                 .addHeader("X-Events-API-AccountName", this.APIAccountName)
                 .addHeader("X-Events-API-Key", this.APIKey)
                 .addHeader("Content-type","application/vnd.appd.events+json;v=2")
-                .addHeader("Accept","application/vnd.appd.events+json;v=2")
-                .build();
-        logger.trace("Request %s",request.toString());
-        Response response = okHttpClient.newCall(request).execute();
-        String json = response.body().string();
-        logger.trace("Response Body: %s",json);
-        return json;
+                .addHeader("Accept","application/vnd.appd.events+json;v=2");
     }
 
     protected String deleteRequest( String urlRequest ) throws IOException {
-        return executeRequest("DELETE", urlRequest, null);
+        return executeRequest("DELETE", urlRequest, (RequestBody) null);
     }
 
+    protected String patchRequest( String url, String body) throws IOException {
+        return executeRequest("PATCH", url, body);
+    }
+
+    public void setSchemaCacheTimeout( long milliseconds ) { this.schemaCacheTimeout = milliseconds; }
+    public void setCompressRequests( boolean compressRequests ) { this.compressRequests = compressRequests; }
+    public void setMaxRetries( int maxRetries ) { this.maxRetries = maxRetries; }
+
     public Schema getSchema( String name ) {
         Schema schema = null;
         try {
-            String json = getRequest(String.format("events/schema/%s", name));
-            //System.out.println("Schema: "+json);
-            schema = gson.fromJson(json, Schema.class);
+            schema = fetchSchema(name);
         } catch (IOException e) {
             logger.warn("Exception in retrieve schema request: %s",e.getMessage());
         }
         return schema;
     }
 
+    //null when the schema does not exist, any other failure throws
+    private Schema fetchSchema( String name ) throws IOException {
+        try {
+            return gson.fromJson(getRequest(String.format("events/schema/%s", name)), Schema.class);
+        } catch (AnalyticsRequestException analyticsRequestException) {
+            if( analyticsRequestException.statusCode == 404 ) return null;
+            throw analyticsRequestException;
+        } catch (JsonSyntaxException jsonSyntaxException) {
+            throw new IOException("Schema "+ name +" reply is not valid json: "+ jsonSyntaxException.getMessage());
+        }
+    }
+
     public String createSchema( Schema schema ) throws IOException {
         String json = schema.getDefinitionJSON();
         logger.trace("Create Schema JSON: %s",json);
         return postRequest(String.format("events/schema/%s",schema.name), json);
     }
 
+    public String updateSchema( Schema schema, Collection<String> newFields ) throws IOException {
+        String json = schema.getUpdateJSON(newFields);
+        logger.trace("Update Schema JSON: %s",json);
+        return patchRequest(String.format("events/schema/%s",schema.name), json);
+    }
+
     public String insertSchema( Schema schema, List<Map<String,String>> list) throws AnalyticsSchemaException, IOException {
-        Map<String,String>[] maps = list.toArray(new HashMap[list.size()]);
-        return insertSchema(schema, maps);
+        for( Map<String,String> event : list ) {
+            for( String key : event.keySet() ) {
+                if( !schema.schema.containsKey(key) ) throw new AnalyticsSchemaException(String.format("Error in Schema Data, key '%s' does not exist in this schema!",key));
+            }
+        }
+        logger.trace("Insert Schema Data: %d events into %s", list.size(), schema.name);
+        return executeRequest("POST", String.format("events/publish/%s",schema.name), new SchemaRequestBody(schema, list));
     }
 
     public String insertSchema(Schema schema, Map<String,String>... data) throws AnalyticsSchemaException, IOException {
-        StringBuilder json = new StringBuilder("[ ");
-        for( int i=0; i<data.length; i++ ) {
-            json.append( schema.getJSON(data[i]) );
-            if( i+1 < data.length ) json.append(", ");
-        }
-        json.append(" ]");
-        logger.trace("Insert Schema Data JSON: %s", json);
-        System.out.println(String.format("JSON: '%s'",json));
-        return postRequest(String.format("events/publish/%s",schema.name), json.toString());
+        return insertSchema(schema, Arrays.asList(data));
     }
 
     public String deleteSchema( Schema schema ) throws IOException, AnalyticsSchemaException {
@@ -103,6 +152,7 @@ public class Analytics {
 
     public String deleteSchema( String name ) throws IOException, AnalyticsSchemaException {
         if( name == null ) throw new AnalyticsSchemaException("Schema name is null in delete request!");
+        schemaCache.remove(name);
         return deleteRequest("events/schema/"+name );
     }
 
@@ -115,8 +165,167 @@ public class Analytics {
             if (schema == null) schema = schemaData.getSchemaDefinition();
             data.add(schemaData.getSchemaData());
         }
-        Schema checkSchema = getSchema(schema.name);
-        if (checkSchema == null || !checkSchema.exists()) createSchema(schema);
-        insertSchema(schema, data);
+        publishEvents(schema, data);
+    }
+
+    public String publishEvents( Schema schema, List<Map<String,String>> data ) throws AnalyticsSchemaException, IOException {
+        for( Map<String,String> event : data ) {
+            for( String key : event.keySet() ) {
+                if( !schema.schema.containsKey(key) ) throw new AnalyticsSchemaException(String.format("Error in Schema Data, key '%s' does not exist in this schema!",key));
+            }
+        }
+        return publishEvents(schema, new SchemaRequestBody(schema, data), data.size());
+    }
+
+    //publishes an already serialized json array of events, as kept in the spool
+    public String publishEvents( Schema schema, byte[] events ) throws IOException {
+        return publishEvents(schema, events, maxRetries);
+    }
+
+    //retries 0 sends once, for probing whether the service is back without holding up the caller through an outage
+    public String publishEvents( Schema schema, byte[] events, int retries ) throws IOException {
+        return publishEvents(schema, RequestBody.create(events, SchemaRequestBody.EVENTS_MEDIA_TYPE), -1, retries);
+    }
+
+    private String publishEvents( Schema schema, RequestBody requestBody, int count ) throws IOException {
+        return publishEvents(schema, requestBody, count, maxRetries);
+    }
+
+    private String publishEvents( Schema schema, RequestBody requestBody, int count, int retries ) throws IOException {
+        ensureSchema(schema);
+        try {
+            return sendEvents(schema, requestBody, count, retries);
+        } catch (AnalyticsRequestException rejected) {
+            if( rejected.statusCode != 404 && !isSchemaError(rejected.reply) ) throw rejected;
+            logger.info("Publish to schema %s failed with a schema error, checking the schema again: %s", schema.name, rejected.reply);
+            schemaCache.remove(schema.name);
+            ensureSchema(schema);
+            return sendEvents(schema, requestBody, count, retries);
+        }
+    }
+
+    /*
+    Posts one batch, gzipped unless compression is turned off, retrying connection failures, 429 and 5xx replies
+    with a jittered exponential backoff. A 2xx reply is returned, any other status throws AnalyticsRequestException
+    right away since sending the same batch again will not change the answer
+     */
+    protected String sendEvents( Schema schema, RequestBody requestBody, int count ) throws IOException {
+        return sendEvents(schema, requestBody, count, maxRetries);
+    }
+
+    protected String sendEvents( Schema schema, RequestBody requestBody, int count, int retries ) throws IOException {
+        Request.Builder builder = newRequest("POST", String.format("events/publish/%s",schema.name), compressRequests ? new GzipRequestBody(requestBody) : requestBody);
+        if( compressRequests ) builder.addHeader("Content-Encoding", "gzip");
+        Request request = builder.build();
+        for( int attempt = 0; ; attempt++ ) {
+            long retryAfter = 0;
+            String failure;
+            try (Response response = okHttpClient.newCall(request).execute()) {
+                int code = response.code();
+                String reply = response.body() == null ? "" : response.body().string();
+                if( code >= 200 && code < 300 ) {
+                    logger.trace("Published %d events to %s, response %d: %s", count, schema.name, code, reply);
+                    return reply;
+                }
+                if( code != 429 && code < 500 )
+                    throw new AnalyticsRequestException(String.format("Publish of %d events to %s was rejected with http %d %s", count, schema.name, code, reply), code, reply);
+                failure = String.format("http %d %s", code, reply);
+                retryAfter = getRetryAfter(response.header("Retry-After"));
+            } catch (AnalyticsRequestException rejected) {
+                throw rejected;
+            } catch (IOException ioException) {
+                failure = ioException.toString();
+            }
+            if( attempt >= retries ) throw new IOException(String.format("Publish of %d events to %s failed after %d attempts, last error: %s", count, schema.name, attempt+1, failure));
+            long delay = Math.max(retryAfter, getBackoff(attempt));
+            logger.debug("Publish to %s failed with %s, retrying in %d ms", schema.name, failure, delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to retry publish to "+ schema.name);
+            }
+        }
+    }
+
+    private long getBackoff( int attempt ) {
+        long delay = Math.min(retryMaxDelay, retryBaseDelay << Math.min(attempt, 20));
+        return delay/2 + ThreadLocalRandom.current().nextLong(delay/2 +1);
+    }
+
+    private long getRetryAfter( String header ) {
+        if( header == null ) return 0;
+        try {
+            return Math.min(retryMaxDelay, Long.parseLong(header.trim()) * 1000L);
+        } catch (NumberFormatException numberFormatException) {
+            return 0; //http date form, fall back to our own backoff
+        }
+    }
+
+    /*
+    Makes sure the schema exists remotely with at least the fields of the local definition, the answer is cached
+    for schemaCacheTimeout so the schema is not looked up before every publish, only when the cache entry expires,
+    the local field set changes or a publish reports a schema error.
+     */
+    protected void ensureSchema( Schema schema ) throws IOException {
+        long now = System.currentTimeMillis();
+        CachedSchema cached = schemaCache.get(schema.name);
+        boolean fresh = cached != null && now - cached.verified < schemaCacheTimeout;
+        if( fresh && cached.fields.keySet().containsAll(schema.schema.keySet()) ) return;
+        Map<String,String> remoteFields = null;
+        long verified = now;
+        if( fresh ) {
+            remoteFields = cached.fields;
+            verified = cached.verified;
+        } else {
+            Schema checkSchema = fetchSchema(schema.name);
+            if( checkSchema != null && checkSchema.exists() ) remoteFields = checkSchema.schema;
+        }
+        if( remoteFields == null ) {
+            createSchema(schema);
+            remoteFields = schema.schema;
+        } else {
+            List<String> newFields = new ArrayList<>();
+            for( Map.Entry<String,String> field : schema.schema.entrySet() ) {
+                String remoteType = remoteFields.get(field.getKey());
+                if( remoteType == null ) {
+                    newFields.add(field.getKey());
+                } else if( !remoteType.equals(field.getValue()) ) {
+                    logger.warn("Schema %s field %s is %s in the Events Service but %s locally, the type can not be changed", schema.name, field.getKey(), remoteType, field.getValue());
+                }
+            }
+            if( !newFields.isEmpty() ) {
+                logger.info("Adding fields %s to schema %s", newFields, schema.name);
+                updateSchema(schema, newFields);
+                remoteFields = new HashMap<>(remoteFields);
+                for( String field : newFields ) remoteFields.put(field, schema.schema.get(field));
+            }
+        }
+        Map<String,String> fields = new HashMap<>(remoteFields);
+        fields.putAll(schema.schema);
+        schemaCache.put(schema.name, new CachedSchema(fields, verified));
+    }
+
+    private boolean isSchemaError( String response ) {
+        if( response == null || !response.trim().startsWith("{") ) return false;
+        try {
+            ErrorReply errorReply = gson.fromJson(response, ErrorReply.class);
+            if( errorReply == null || !errorReply.isErrorResponse() ) return false;
+            return errorReply.statusCode == 404
+                    || String.valueOf(errorReply.code).toLowerCase().contains("schema")
+                    || String.valueOf(errorReply.message).toLowerCase().contains("schema");
+        } catch (JsonSyntaxException exception) {
+            return false;
+        }
+    }
+
+    private static class CachedSchema {
+        private final Map<String,String> fields;
+        private final long verified;
+
+        private CachedSchema( Map<String,String> fields, long verified ) {
+            this.fields = fields;
+            this.verified = verified;
+        }
     }
 }
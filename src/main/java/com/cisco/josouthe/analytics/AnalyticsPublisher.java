@@ -0,0 +1,281 @@
+package com.cisco.josouthe.analytics;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import okio.Buffer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Publishes events in the background so a slow Events Service never holds up the caller. Events wait in a bounded
+ * queue and are sent in batches once batchSize events are waiting or the oldest one is maxBatchAge old. When the
+ * queue is full the oldest events are dropped and counted, publish() never blocks. With a spool set, batches that
+ * fail to publish are written to disk and replayed oldest first at a limited rate once publishing works again.
+ * After the first failed batch later batches go straight to the spool without being tried, so an outage does not
+ * hold this thread in retries while the queue overflows; a replay that gets through ends that. A batch the service
+ * rejects for good, like with a bad API key, is counted as failed and never spooled.
+ */
+public class AnalyticsPublisher implements Runnable {
+    private static final Logger logger = LogManager.getFormatterLogger();
+
+    private final Analytics analytics;
+    private final ArrayBlockingQueue<QueuedEvent> queue;
+    private final int batchSize;
+    private final long maxBatchAge;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong publishRequests = new AtomicLong();
+    private final AtomicLong publishMillis = new AtomicLong();
+    private volatile EventSpool spool;
+    private long replayInterval = 1000L, replayRetryInterval = 60*1000L, nextReplay = 0;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long droppedReported = 0;
+    private boolean spoolOnly = false; //publishing failed, batches are spooled until a replay succeeds
+
+    public AnalyticsPublisher( Analytics analytics, int maxQueueSize, int batchSize, long maxBatchAgeMillis ) {
+        this.analytics = analytics;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, maxQueueSize));
+        this.batchSize = Math.max(1, Math.min(batchSize, maxQueueSize));
+        this.maxBatchAge = Math.max(1, maxBatchAgeMillis);
+        this.thread = new Thread(this, "AnalyticsPublisher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void publish( SchemaData schemaData ) throws AnalyticsSchemaException {
+        publish(schemaData.getSchemaDefinition(), schemaData.getSchemaData());
+    }
+
+    public void publish( Schema schema, Map<String,String> data ) {
+        QueuedEvent event = new QueuedEvent(schema, data, System.currentTimeMillis());
+        while( !queue.offer(event) ) {
+            if( queue.poll() != null ) dropped.incrementAndGet();
+        }
+    }
+
+    public long getDropped() { return dropped.get(); }
+    public long getPublished() { return published.get(); }
+    public long getFailed() { return failed.get(); }
+    public long getSpooled() { return spooled.get(); }
+    public long getReplayed() { return replayed.get(); }
+    public int getQueued() { return queue.size(); }
+    public long getPublishRequests() { return publishRequests.get(); }
+    public long getPublishMillis() { return publishMillis.get(); } //total time spent in publish requests, retries included
+
+    public long getSpoolSize() {
+        EventSpool eventSpool = spool;
+        return eventSpool == null ? 0 : eventSpool.getSize();
+    }
+
+    public void setSpool( EventSpool spool, int replayBatchesPerSecond ) {
+        this.replayInterval = 1000L / Math.max(1, replayBatchesPerSecond);
+        this.spool = spool;
+    }
+
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        List<QueuedEvent> batch = new ArrayList<>(batchSize);
+        while( running ) {
+            try {
+                QueuedEvent first = queue.poll(getPollTime(), TimeUnit.MILLISECONDS);
+                if( first != null ) {
+                    batch.add(first);
+                    long flushTime = first.queued + maxBatchAge;
+                    while( batch.size() < batchSize ) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long waitTime = flushTime - System.currentTimeMillis();
+                        if( batch.size() >= batchSize || waitTime <= 0 ) break;
+                        QueuedEvent next = queue.poll(waitTime, TimeUnit.MILLISECONDS);
+                        if( next == null ) break;
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException interruptedException) {
+                if( !running ) break;
+            }
+            if( !batch.isEmpty() ) flush(batch);
+            batch.clear();
+            if( running ) replay();
+        }
+    }
+
+    private long getPollTime() {
+        EventSpool eventSpool = spool;
+        if( eventSpool == null ) return maxBatchAge;
+        try {
+            if( !eventSpool.hasPending() ) return maxBatchAge;
+        } catch (IOException ioException) {
+            return maxBatchAge;
+        }
+        return Math.max(1, Math.min(maxBatchAge, nextReplay - System.currentTimeMillis()));
+    }
+
+    //sends at most one spooled batch per replayInterval, a failure pauses replay for replayRetryInterval, a rejected batch is dropped
+    private void replay() {
+        EventSpool eventSpool = spool;
+        long now = System.currentTimeMillis();
+        if( eventSpool == null || now < nextReplay ) return;
+        EventSpool.Record record = null;
+        try {
+            record = eventSpool.peek();
+            if( record == null ) return;
+            long start = System.currentTimeMillis();
+            try {
+                //while batches skip publishing a replay is the probe, a single attempt keeps it short
+                if( spoolOnly ) {
+                    analytics.publishEvents(record.schema, record.events, 0);
+                } else {
+                    analytics.publishEvents(record.schema, record.events);
+                }
+            } finally {
+                countPublishTime(start);
+            }
+            eventSpool.commit(record);
+            replayed.incrementAndGet();
+            nextReplay = now + replayInterval;
+            if( spoolOnly ) {
+                spoolOnly = false;
+                logger.info("Analytics spool replay succeeded, publishing new batches directly again");
+            }
+            if( !eventSpool.hasPending() ) logger.info("Analytics spool replay complete, %d batches replayed", replayed.get());
+        } catch (AnalyticsRequestException rejected) {
+            if( rejected.isRetryable() ) {
+                pauseReplay(now, rejected);
+                return;
+            }
+            eventSpool.commit(record);
+            nextReplay = now + replayInterval; //the service answered, the next record can go
+            int count = countEvents(record.events);
+            failed.addAndGet(count);
+            logger.warn("Spooled batch of %d events for schema %s was rejected and is dropped: %s", count, record.schema.name, rejected.getMessage());
+        } catch (IOException ioException) {
+            pauseReplay(now, ioException);
+        }
+    }
+
+    private void pauseReplay( long now, IOException ioException ) {
+        nextReplay = now + replayRetryInterval;
+        logger.debug("Analytics spool replay paused for %d seconds: %s", replayRetryInterval/1000, ioException.toString());
+    }
+
+    //the number of events in a spooled json array, for counting a dropped record
+    private static int countEvents( byte[] events ) {
+        try {
+            return JsonParser.parseString(new String(events, StandardCharsets.UTF_8)).getAsJsonArray().size();
+        } catch (JsonParseException | IllegalStateException exception) {
+            return 0;
+        }
+    }
+
+    private void flush( List<QueuedEvent> batch ) {
+        long droppedNow = dropped.get();
+        if( droppedNow != droppedReported ) {
+            logger.warn("Analytics queue full, dropped %d oldest events since the last publish", droppedNow - droppedReported);
+            droppedReported = droppedNow;
+        }
+        Map<String,List<Map<String,String>>> bySchema = new LinkedHashMap<>();
+        Map<String,Schema> schemas = new LinkedHashMap<>();
+        for( QueuedEvent event : batch ) {
+            Schema schema = schemas.get(event.schema.name);
+            if( schema == null ) {
+                schemas.put(event.schema.name, event.schema);
+            } else if( schema != event.schema && !schema.schema.keySet().containsAll(event.schema.schema.keySet()) ) {
+                //senders may use different field sets under one schema name, publish them together under the union
+                Schema merged = new Schema(schema.name);
+                merged.schema.putAll(event.schema.schema);
+                merged.schema.putAll(schema.schema);
+                schemas.put(schema.name, merged);
+            }
+            bySchema.computeIfAbsent(event.schema.name, name -> new ArrayList<>()).add(event.data);
+        }
+        for( Map.Entry<String,List<Map<String,String>>> entry : bySchema.entrySet() ) {
+            Schema schema = schemas.get(entry.getKey());
+            if( spoolOnly && spool(schema, entry.getValue()) ) continue;
+            long start = System.currentTimeMillis();
+            try {
+                try {
+                    analytics.publishEvents(schema, entry.getValue());
+                } finally {
+                    countPublishTime(start);
+                }
+                published.addAndGet(entry.getValue().size());
+                nextReplay = Math.min(nextReplay, System.currentTimeMillis()); //the service is back, no need to wait out the retry interval
+            } catch (AnalyticsRequestException rejected) {
+                if( rejected.isRetryable() ) {
+                    spoolFailed(schema, entry.getValue(), rejected);
+                } else {
+                    //sending it again will not change the answer, so it is not spooled and publishing carries on
+                    failed.addAndGet(entry.getValue().size());
+                    logger.warn("Could not publish %d events to schema %s, they were rejected: %s", entry.getValue().size(), entry.getKey(), rejected.getMessage());
+                }
+            } catch (IOException ioException) {
+                spoolFailed(schema, entry.getValue(), ioException);
+            } catch (Exception exception) {
+                failed.addAndGet(entry.getValue().size());
+                logger.warn("Could not publish %d events to schema %s: %s", entry.getValue().size(), entry.getKey(), exception.toString());
+            }
+        }
+    }
+
+    private void spoolFailed( Schema schema, List<Map<String,String>> events, IOException ioException ) {
+        if( !spool(schema, events) ) {
+            failed.addAndGet(events.size());
+            logger.warn("Could not publish %d events to schema %s: %s", events.size(), schema.name, ioException.toString());
+        } else if( !spoolOnly ) {
+            spoolOnly = true;
+            nextReplay = System.currentTimeMillis() + replayRetryInterval;
+            logger.warn("Could not publish %d events to schema %s, spooling new batches until a replay succeeds: %s", events.size(), schema.name, ioException.toString());
+        }
+    }
+
+    private void countPublishTime( long start ) {
+        publishRequests.incrementAndGet();
+        publishMillis.addAndGet(System.currentTimeMillis() - start);
+    }
+
+    private boolean spool( Schema schema, List<Map<String,String>> events ) {
+        EventSpool eventSpool = spool;
+        if( eventSpool == null ) return false;
+        try {
+            Buffer buffer = new Buffer();
+            new SchemaRequestBody(schema, events).writeTo(buffer);
+            eventSpool.append(schema, buffer.readByteArray());
+            spooled.addAndGet(events.size());
+            return true;
+        } catch (IOException ioException) {
+            logger.warn("Could not write %d events for schema %s to the spool: %s", events.size(), schema.name, ioException.toString());
+            return false;
+        }
+    }
+
+    private static class QueuedEvent {
+        private final Schema schema;
+        private final Map<String,String> data;
+        private final long queued;
+
+        private QueuedEvent( Schema schema, Map<String,String> data, long queued ) {
+            this.schema = schema;
+            this.data = data;
+            this.queued = queued;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.cisco.josouthe.analytics;
+
+import java.io.IOException;
+
+//the Events Service answered with a status other than 2xx, which is either an outage or a request it will never take
+public class AnalyticsRequestException extends IOException {
+    private static final long serialVersionUID = 1L;
+    public final int statusCode;
+    public final String reply;
+
+    public AnalyticsRequestException( String message, int statusCode, String reply ) {
+        super(message);
+        this.statusCode = statusCode;
+        this.reply = reply;
+    }
+
+    //429 and 5xx may go through later, any other status, like a bad API key or an unknown schema, will not
+    public boolean isRetryable() {
+        return statusCode == 429 || statusCode >= 500;
+    }
+}
@@ -0,0 +1,288 @@
+package com.cisco.josouthe.analytics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/*
+ * Append only spool of serialized event batches that could not be published, kept in segment files so an Events
+ * Service outage costs bounded disk instead of heap. Records are read back oldest first, the read position is kept
+ * in a small memory mapped cursor file so a restart continues where replay stopped. Segments are written and read
+ * through plain FileChannels, not mapped, so the file can be deleted as soon as its channels are closed, a mapped
+ * file can not be deleted on Windows until the mapping is garbage collected. Segments are deleted once replayed,
+ * when the spool grows past maxBytes or when they have not been written for maxAge. Only the publisher thread uses
+ * it, so nothing here is synchronized.
+ *
+ * record layout: int length, int crc32 of the payload, payload; the end of the file, or a record that is cut short
+ * or fails its crc, marks the end of a segment
+ */
+public class EventSpool {
+    private static final Logger logger = LogManager.getFormatterLogger();
+    private static final String SEGMENT_PREFIX = "spool-", SEGMENT_SUFFIX = ".seg", CURSOR_FILE = "spool.cursor";
+    private static final int HEADER = 8;
+    private static final long EXPIRE_CHECK_INTERVAL = 60*1000L;
+
+    private final File directory;
+    private final long maxBytes, maxAge;
+    private final int segmentSize;
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private final MappedByteBuffer cursor;
+    private long writeSegment = -1;
+    private FileChannel writeChannel;
+    private int writePosition;
+    private long readSegment;
+    private int readOffset;
+    private FileChannel readChannel;
+    private long readChannelSegment = -1;
+    private Record pending;
+    private long droppedSegments = 0, nextExpireCheck = 0;
+
+    public EventSpool( File directory, long maxBytes, int segmentSize, long maxAgeMillis ) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+        this.maxAge = maxAgeMillis;
+        if( !directory.isDirectory() && !directory.mkdirs() ) throw new IOException("Can not create spool directory "+ directory);
+        File[] files = directory.listFiles();
+        if( files != null ) {
+            for( File file : files ) {
+                String name = file.getName();
+                if( !name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX) ) continue;
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException numberFormatException) {
+                    logger.warn("Ignoring unexpected file in the spool directory: %s", file);
+                }
+            }
+        }
+        this.cursor = map(new File(directory, CURSOR_FILE), 12);
+        this.readSegment = cursor.getLong(0);
+        this.readOffset = cursor.getInt(8);
+        if( !segments.isEmpty() ) {
+            writeSegment = segments.lastKey();
+            writeChannel = open(segments.get(writeSegment));
+            int position = 0;
+            byte[] payload;
+            while( (payload = readRecord(writeChannel, position)) != null ) position += HEADER + payload.length;
+            //a record torn by a crash is cut off, the next append goes where it started
+            writeChannel.truncate(position);
+            writePosition = position;
+            logger.info("Analytics spool %s opened with %d segments", directory, segments.size());
+        }
+    }
+
+    public long getDroppedSegments() { return droppedSegments; }
+
+    public long getSize() {
+        long size = 0;
+        for( File file : segments.values() ) size += file.length();
+        return size;
+    }
+
+    public void append( Schema schema, byte[] events ) throws IOException {
+        byte[] payload = encode(schema, events);
+        if( writeChannel == null || (writePosition > 0 && writePosition + HEADER + payload.length > segmentSize) ) roll();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        long position = writePosition;
+        while( record.hasRemaining() ) position += writeChannel.write(record, position);
+        writeChannel.force(false);
+        writePosition += HEADER + payload.length;
+        segments.get(writeSegment).setLastModified(System.currentTimeMillis());
+        enforceSize();
+    }
+
+    public boolean hasPending() throws IOException {
+        return peek() != null;
+    }
+
+    //the oldest record not yet committed, it stays the same until commit() is called
+    public Record peek() throws IOException {
+        if( pending != null ) return pending;
+        expire();
+        while( !segments.isEmpty() ) {
+            if( !segments.containsKey(readSegment) ) {
+                Long next = segments.ceilingKey(readSegment);
+                if( next == null ) return null;
+                moveCursor(next, 0);
+            }
+            if( readChannelSegment != readSegment ) {
+                closeRead();
+                readChannel = FileChannel.open(segments.get(readSegment).toPath(), StandardOpenOption.READ);
+                readChannelSegment = readSegment;
+            }
+            byte[] payload = readRecord(readChannel, readOffset);
+            if( payload != null ) {
+                pending = decode(payload, readOffset + HEADER + payload.length);
+                return pending;
+            }
+            if( readSegment == writeSegment ) return null;
+            deleteSegment(readSegment);
+        }
+        return null;
+    }
+
+    public void commit( Record record ) {
+        if( record != pending ) return;
+        pending = null;
+        moveCursor(readSegment, record.nextOffset);
+    }
+
+    private void moveCursor( long segment, int offset ) {
+        readSegment = segment;
+        readOffset = offset;
+        cursor.putLong(0, segment);
+        cursor.putInt(8, offset);
+    }
+
+    private void roll() throws IOException {
+        long segment = Math.max(writeSegment, readSegment) +1;
+        File file = new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+        FileChannel channel = open(file);
+        if( writeChannel != null ) writeChannel.close();
+        writeChannel = channel;
+        writePosition = 0;
+        writeSegment = segment;
+        segments.put(segment, file);
+    }
+
+    private void enforceSize() throws IOException {
+        long size = getSize();
+        while( size > maxBytes && segments.size() > 1 ) {
+            long oldest = segments.firstKey();
+            size -= segments.get(oldest).length();
+            logger.warn("Analytics spool %s is over %d bytes, dropping the oldest segment", directory, maxBytes);
+            droppedSegments++;
+            deleteSegment(oldest);
+        }
+    }
+
+    private void expire() throws IOException {
+        long now = System.currentTimeMillis();
+        if( now < nextExpireCheck ) return;
+        nextExpireCheck = now + EXPIRE_CHECK_INTERVAL;
+        while( !segments.isEmpty() && segments.firstKey() != writeSegment ) {
+            File oldest = segments.firstEntry().getValue();
+            if( now - oldest.lastModified() < maxAge ) break;
+            logger.warn("Analytics spool segment %s is older than %d minutes, dropping it", oldest.getName(), maxAge/60000);
+            droppedSegments++;
+            deleteSegment(segments.firstKey());
+        }
+    }
+
+    //the segment's channels are closed first, an open file can not be deleted on Windows
+    private void deleteSegment( long segment ) throws IOException {
+        File file = segments.remove(segment);
+        if( segment == readChannelSegment ) {
+            closeRead();
+            pending = null;
+        }
+        if( segment == writeSegment ) {
+            writeChannel.close();
+            writeChannel = null;
+            writeSegment = -1;
+        }
+        if( file != null && file.exists() && !file.delete() ) {
+            logger.warn("Could not delete analytics spool segment %s, it is no longer counted against the spool size", file);
+            throw new IOException("Can not delete spool segment "+ file);
+        }
+    }
+
+    private void closeRead() throws IOException {
+        if( readChannel != null ) readChannel.close();
+        readChannel = null;
+        readChannelSegment = -1;
+    }
+
+    private static FileChannel open( File file ) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    //null at the end of the segment, which is also where a torn or corrupt record is
+    private static byte[] readRecord( FileChannel channel, int position ) throws IOException {
+        long size = channel.size();
+        if( position + HEADER > size ) return null;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        if( !readFully(channel, header, position) ) return null;
+        int length = header.getInt(0);
+        if( length <= 0 || position + HEADER + (long) length > size ) return null;
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        if( !readFully(channel, payload, position + HEADER) ) return null;
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if( (int) crc.getValue() != header.getInt(4) ) return null;
+        return payload.array();
+    }
+
+    private static boolean readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException {
+        while( buffer.hasRemaining() ) {
+            int read = channel.read(buffer, position + buffer.position());
+            if( read < 0 ) return false;
+        }
+        return true;
+    }
+
+    private static MappedByteBuffer map( File file, long size ) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if( randomAccessFile.length() < size ) randomAccessFile.setLength(size);
+            FileChannel channel = randomAccessFile.getChannel();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+    }
+
+    private static byte[] encode( Schema schema, byte[] events ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(events.length + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(schema.name);
+        out.writeInt(schema.schema.size());
+        for( Map.Entry<String,String> field : schema.schema.entrySet() ) {
+            out.writeUTF(field.getKey());
+            out.writeUTF(field.getValue());
+        }
+        out.writeInt(events.length);
+        out.write(events);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Record decode( byte[] payload, int nextOffset ) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Schema schema = new Schema(in.readUTF());
+        int fields = in.readInt();
+        for( int i = 0; i < fields; i++ ) schema.schema.put(in.readUTF(), in.readUTF());
+        byte[] events = new byte[in.readInt()];
+        in.readFully(events);
+        return new Record(schema, events, nextOffset);
+    }
+
+    public static class Record {
+        public final Schema schema;
+        public final byte[] events;
+        private final int nextOffset;
+
+        private Record( Schema schema, byte[] events, int nextOffset ) {
+            this.schema = schema;
+            this.events = events;
+            this.nextOffset = nextOffset;
+        }
+    }
+}
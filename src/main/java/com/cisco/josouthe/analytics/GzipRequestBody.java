@@ -0,0 +1,37 @@
+package com.cisco.josouthe.analytics;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.IOException;
+
+/*
+ * Compresses another request body on the fly, the request needs a "Content-Encoding: gzip" header to go with it
+ */
+public class GzipRequestBody extends RequestBody {
+    private final RequestBody body;
+
+    public GzipRequestBody( RequestBody body ) {
+        this.body = body;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return body.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+        return -1; //not known until it is written
+    }
+
+    @Override
+    public void writeTo( BufferedSink sink ) throws IOException {
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+        body.writeTo(gzipSink);
+        gzipSink.close();
+    }
+}
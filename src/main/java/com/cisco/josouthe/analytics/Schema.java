@@ -1,5 +1,15 @@
 package com.cisco.josouthe.analytics;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -11,6 +21,7 @@ public class Schema extends ErrorReply {
     public Map<String,String> schema;
     private static Pattern startsWithNumber = Pattern.compile("^\\d");
     private static Pattern validName = Pattern.compile("^[a-z|A-Z|_][a-z|A-Z|_|0-9]*$");
+    private static final Gson gson = new Gson();
 
     public Schema() {} //for GSON
 
@@ -58,22 +69,90 @@ public class Schema extends ErrorReply {
         return json.toString();
     }
 
-    public String getJSON( Map<String,String> data ) throws AnalyticsSchemaException {
-        StringBuilder json = new StringBuilder("{ ");
-        Iterator<String> it = data.keySet().iterator();
-        while(it.hasNext()) {
+    public String getUpdateJSON( Collection<String> fields ) {
+        StringBuilder json = new StringBuilder("[ { \"add\" : { ");
+        Iterator<String> it = fields.iterator();
+        while( it.hasNext() ) {
             String key = it.next();
-            if( !this.schema.containsKey(key) ) throw new AnalyticsSchemaException(String.format("Error in Schema Data, key '%s' does not exist in this schema!",key));
-            json.append(String.format("\"%s\" : ",key));
-            switch ( this.schema.get(key) ) {
-                case "boolean": { json.append(String.format("%s", Boolean.valueOf(data.get(key)))); break; }
-                case "string": {json.append(String.format("\"%s\"", data.get(key))); break; }
-                default:
-                    { json.append(String.format("%s",data.get(key))); break; }
-            }
+            json.append(String.format("\"%s\" : \"%s\"", key, schema.get(key)));
             if( it.hasNext() ) json.append(", ");
         }
-        json.append("} ");
+        json.append("} } ]");
         return json.toString();
     }
+
+    public String getJSON( Map<String,String> data ) throws AnalyticsSchemaException {
+        StringWriter json = new StringWriter();
+        try {
+            writeJSON(new JsonWriter(json), data);
+        } catch (IOException ioException) {
+            throw new AnalyticsSchemaException("Error writing schema data json: "+ ioException.getMessage());
+        }
+        return json.toString();
+    }
+
+    public void writeJSON( JsonWriter writer, Map<String,String> data ) throws AnalyticsSchemaException, IOException {
+        writer.beginObject();
+        for( Map.Entry<String,String> entry : data.entrySet() ) {
+            String type = this.schema.get(entry.getKey());
+            if( type == null ) throw new AnalyticsSchemaException(String.format("Error in Schema Data, key '%s' does not exist in this schema!",entry.getKey()));
+            writer.name(entry.getKey());
+            String value = entry.getValue();
+            if( value == null ) {
+                writer.nullValue();
+                continue;
+            }
+            switch ( type ) {
+                case "boolean": { writer.value(Boolean.parseBoolean(value)); break; }
+                case "integer":
+                case "float": {
+                    BigDecimal number = toNumber(value);
+                    if( number != null ) {
+                        writer.value(number);
+                    } else {
+                        writer.nullValue();
+                    }
+                    break;
+                }
+                case "date": {
+                    BigDecimal number = toNumber(value);
+                    if( number != null ) {
+                        writer.value(number);
+                    } else {
+                        writer.value(value);
+                    }
+                    break;
+                }
+                case "object": {
+                    JsonElement element = toJsonElement(value);
+                    if( element != null ) {
+                        gson.toJson(element, writer);
+                    } else {
+                        writer.nullValue();
+                    }
+                    break;
+                }
+                default: { writer.value(value); break; }
+            }
+        }
+        writer.endObject();
+    }
+
+    //null unless the whole value is a number, nothing is ever written into the request unchecked
+    private static BigDecimal toNumber( String value ) {
+        try {
+            return new BigDecimal(value.trim());
+        } catch (NumberFormatException numberFormatException) {
+            return null;
+        }
+    }
+
+    //parsed and written back out, so a malformed value becomes null instead of breaking the whole batch
+    private static JsonElement toJsonElement( String value ) {
+        try {
+            return JsonParser.parseString(value);
+        } catch (JsonParseException jsonParseException) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,45 @@
+package com.cisco.josouthe.analytics;
+
+import com.google.gson.stream.JsonWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Writes a publish batch straight into the http request sink, one event at a time, so the payload is never
+ * built up as a String in memory.
+ */
+public class SchemaRequestBody extends RequestBody {
+    public static final MediaType EVENTS_MEDIA_TYPE = MediaType.parse("application/vnd.appd.events+json;v=2");
+    private final Schema schema;
+    private final List<Map<String,String>> data;
+
+    public SchemaRequestBody( Schema schema, List<Map<String,String>> data ) {
+        this.schema = schema;
+        this.data = data;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return EVENTS_MEDIA_TYPE;
+    }
+
+    @Override
+    public void writeTo( BufferedSink sink ) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+        writer.beginArray();
+        try {
+            for( Map<String,String> event : data ) schema.writeJSON(writer, event);
+        } catch (AnalyticsSchemaException analyticsSchemaException) {
+            throw new IOException(analyticsSchemaException.getMessage(), analyticsSchemaException);
+        }
+        writer.endArray();
+        writer.flush();
+    }
+}
@@ -0,0 +1,103 @@
+package com.cisco.josouthe;
+
+import org.junit.Test;
+import org.snmp4j.smi.OID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CounterStoreTest {
+    private static final long KEY = 42;
+
+    @Test
+    public void firstSampleHasNoRate() {
+        CounterStore store = new CounterStore(100, 10);
+        store.beginRun();
+        assertEquals(ValueType.INVALID, store.rate(KEY, 1000, ValueType.COUNTER32, 0, 1));
+        assertEquals(100, store.rate(KEY, 2000, ValueType.COUNTER32, 10000, 1));
+    }
+
+    @Test
+    public void counter32Wraps() {
+        CounterStore store = new CounterStore(100, 10);
+        store.beginRun();
+        store.rate(KEY, 4294967000L, ValueType.COUNTER32, 0, 1);
+        //296 up to the wrap plus 200 after it
+        assertEquals(496, store.rate(KEY, 200, ValueType.COUNTER32, 1000, 1));
+    }
+
+    @Test
+    public void counter64WrapsAsUnsigned() {
+        CounterStore store = new CounterStore(100, 10);
+        store.beginRun();
+        store.rate(KEY, -10L, ValueType.COUNTER64, 0, 1);
+        assertEquals(15, store.rate(KEY, 5, ValueType.COUNTER64, 1000, 1));
+    }
+
+    @Test
+    public void counterFarBackwardsIsNotAWrap() {
+        CounterStore store = new CounterStore(100, 10);
+        store.beginRun();
+        store.rate(KEY, 1000, ValueType.COUNTER32, 0, 1);
+        assertEquals(ValueType.INVALID, store.rate(KEY, 5, ValueType.COUNTER32, 1000, 1));
+        //the backwards sample is the new baseline
+        assertEquals(10, store.rate(KEY, 15, ValueType.COUNTER32, 2000, 1));
+    }
+
+    @Test
+    public void epochChangeResetsBaseline() {
+        CounterStore store = new CounterStore(100, 10);
+        store.beginRun();
+        store.rate(KEY, 1000, ValueType.COUNTER64, 0, 1);
+        assertEquals(ValueType.INVALID, store.rate(KEY, 50, ValueType.COUNTER64, 1000, 2));
+        assertEquals(50, store.rate(KEY, 100, ValueType.COUNTER64, 2000, 2));
+    }
+
+    @Test
+    public void noElapsedTimeHasNoRate() {
+        CounterStore store = new CounterStore(100, 10);
+        store.beginRun();
+        store.rate(KEY, 1000, ValueType.NUMBER, 5000, 1);
+        assertEquals(ValueType.INVALID, store.rate(KEY, 2000, ValueType.NUMBER, 5000, 1));
+    }
+
+    @Test
+    public void largeDeltaDoesNotOverflow() {
+        CounterStore store = new CounterStore(100, 10);
+        store.beginRun();
+        store.rate(KEY, 0, ValueType.COUNTER64, 0, 1);
+        assertEquals(Long.MAX_VALUE / 2 / 2000 * 1000, store.rate(KEY, Long.MAX_VALUE / 2, ValueType.COUNTER64, 2000, 1));
+    }
+
+    @Test
+    public void fullStoreRejectsUntilStaleEntriesAreDropped() {
+        CounterStore store = new CounterStore(16, 1);
+        store.beginRun();
+        for( long key = 1; key <= 16; key++ ) store.rate(key, 0, ValueType.NUMBER, 0, 1);
+        store.rate(17, 0, ValueType.NUMBER, 0, 1);
+        assertEquals(16, store.size());
+        assertEquals(ValueType.INVALID, store.rate(17, 100, ValueType.NUMBER, 1000, 1));
+        store.endRun();
+        assertEquals(16, store.size());
+
+        store.beginRun();
+        assertEquals(100, store.rate(1, 100, ValueType.NUMBER, 1000, 1));
+        store.endRun();
+        assertEquals(1, store.size());
+
+        store.beginRun();
+        store.rate(17, 0, ValueType.NUMBER, 1000, 1);
+        assertEquals(100, store.rate(17, 100, ValueType.NUMBER, 2000, 1));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void keysDependOnEndpointAndInstance() {
+        long seed = CounterStore.seed("router1");
+        OID oid = new OID("1.3.6.1.2.1.31.1.1.1.6.1");
+        assertEquals(CounterStore.key(seed, oid), CounterStore.key(CounterStore.seed("router1"), new OID("1.3.6.1.2.1.31.1.1.1.6.1")));
+        assertNotEquals(CounterStore.key(seed, oid), CounterStore.key(CounterStore.seed("router2"), oid));
+        assertNotEquals(CounterStore.key(seed, oid), CounterStore.key(seed, new OID("1.3.6.1.2.1.31.1.1.1.6.2")));
+        assertNotEquals(0, CounterStore.key(seed, oid));
+    }
+}
@@ -0,0 +1,101 @@
+package com.cisco.josouthe;
+
+import com.singularity.ee.agent.systemagent.api.AManagedMonitor;
+import com.singularity.ee.agent.systemagent.api.MetricWriter;
+import com.singularity.ee.agent.systemagent.api.TaskExecutionContext;
+import com.singularity.ee.agent.systemagent.api.TaskOutput;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MetricCacheTest {
+    private static final String PATH = "Custom Metrics|SNMP|router1|ifInOctets";
+    private final AManagedMonitor monitor = new AManagedMonitor() {
+        @Override
+        public TaskOutput execute( Map<String, String> configMap, TaskExecutionContext taskExecutionContext ) { return null; }
+    };
+    private int created = 0;
+    private final Function<String, MetricWriter> factory = path -> {
+        created++;
+        return monitor.getMetricWriter(path, MetricWriter.METRIC_AGGREGATION_TYPE_OBSERVATION,
+                MetricWriter.METRIC_TIME_ROLLUP_TYPE_CURRENT, MetricWriter.METRIC_CLUSTER_ROLLUP_TYPE_COLLECTIVE);
+    };
+
+    @Test
+    public void writerIsCreatedOnce() {
+        MetricCache cache = new MetricCache(100, 2);
+        cache.beginRun();
+        MetricWriter writer = cache.getWriter(PATH, factory);
+        assertNotNull(writer);
+        assertSame(writer, cache.getWriter(PATH, factory));
+        assertSame(writer, cache.getWriter(PATH, 5, -1, 0, 0, factory));
+        assertEquals(1, created);
+    }
+
+    @Test
+    public void valuesWithinDeadbandAreSuppressed() {
+        MetricCache cache = new MetricCache(100, 2);
+        cache.beginRun();
+        assertNotNull(cache.getWriter(PATH, 100, 10, 0, 0, factory));
+        assertNull(cache.getWriter(PATH, 110, 10, 0, 1000, factory));
+        assertNull(cache.getWriter(PATH, 90, 10, 0, 2000, factory));
+        assertNotNull(cache.getWriter(PATH, 111, 10, 0, 3000, factory));
+        //the deadband is measured from the last value written, not the last one seen
+        assertNull(cache.getWriter(PATH, 120, 10, 0, 4000, factory));
+        assertNotNull(cache.getWriter(PATH, 100, 10, 0, 5000, factory));
+    }
+
+    @Test
+    public void negativeDeadbandAlwaysWrites() {
+        MetricCache cache = new MetricCache(100, 2);
+        cache.beginRun();
+        assertNotNull(cache.getWriter(PATH, 100, -1, 0, 0, factory));
+        assertNotNull(cache.getWriter(PATH, 100, -1, 0, 1000, factory));
+    }
+
+    @Test
+    public void heartbeatWritesUnchangedValue() {
+        MetricCache cache = new MetricCache(100, 2);
+        cache.beginRun();
+        assertNotNull(cache.getWriter(PATH, 100, 0, 60000, 0, factory));
+        assertNull(cache.getWriter(PATH, 100, 0, 60000, 59999, factory));
+        assertNotNull(cache.getWriter(PATH, 100, 0, 60000, 60000, factory));
+        //the heartbeat restarts with every write
+        assertNull(cache.getWriter(PATH, 100, 0, 60000, 119999, factory));
+        assertNotNull(cache.getWriter(PATH, 100, 0, 60000, 120000, factory));
+    }
+
+    @Test
+    public void fullCacheWritesUncachedUntilStaleEntriesAreDropped() {
+        MetricCache cache = new MetricCache(16, 1);
+        cache.beginRun();
+        for( int i = 0; i < 16; i++ ) cache.getWriter(PATH + i, factory);
+        created = 0;
+        //no room, so the value is written and never suppressed
+        assertNotNull(cache.getWriter(PATH, 100, 10, 0, 0, factory));
+        assertNotNull(cache.getWriter(PATH, 100, 10, 0, 1000, factory));
+        MetricWriter uncached = cache.getWriter(PATH, factory);
+        assertNotSame(uncached, cache.getWriter(PATH, factory));
+        assertEquals(4, created);
+        assertEquals(16, cache.size());
+        cache.endRun();
+        assertEquals(16, cache.size());
+
+        cache.beginRun();
+        cache.getWriter(PATH + 0, factory);
+        cache.endRun();
+        assertEquals(1, cache.size());
+
+        cache.beginRun();
+        MetricWriter cached = cache.getWriter(PATH, factory);
+        assertSame(cached, cache.getWriter(PATH, factory));
+        assertEquals(2, cache.size());
+    }
+}
@@ -0,0 +1,55 @@
+package com.cisco.josouthe;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ShardSelectorTest {
+
+    private static ConfigEndpoint[] endpoints( int count ) {
+        ConfigEndpoint[] endpoints = new ConfigEndpoint[count];
+        for( int i = 0; i < count; i++ ) {
+            endpoints[i] = new ConfigEndpoint();
+            endpoints[i].name = "device"+ i;
+        }
+        return endpoints;
+    }
+
+    private static ShardSelector selector( String members, String self ) throws Exception {
+        Map<String,String> configMap = new HashMap<>();
+        configMap.put("shardMembers", members);
+        configMap.put("shardMember", self);
+        return ShardSelector.fromArguments(configMap);
+    }
+
+    @Test
+    public void noShardingConfigured() throws Exception {
+        assertNull(ShardSelector.fromArguments(new HashMap<>()));
+    }
+
+    @Test
+    public void singleMemberPollsEverything() throws Exception {
+        ShardSelector selector = selector("collectorA", "collectorA");
+        assertNotNull(selector);
+        assertEquals(100, selector.select(endpoints(100)).length);
+    }
+
+    @Test
+    public void collectorNotAMemberPollsNothing() throws Exception {
+        assertEquals(0, selector("collectorA", "collectorB").select(endpoints(100)).length);
+        assertEquals(0, selector("collectorA,collectorC", "collectorB").select(endpoints(100)).length);
+    }
+
+    @Test
+    public void membersSplitEveryEndpointOnce() throws Exception {
+        ConfigEndpoint[] endpoints = endpoints(1000);
+        int total = 0;
+        for( String self : new String[]{ "a", "b", "c" } ) total += selector("a,b,c", self).select(endpoints).length;
+        assertEquals(1000, total);
+    }
+}
@@ -0,0 +1,135 @@
+package com.cisco.josouthe.analytics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+
+public class AnalyticsPublisherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class FailingAnalytics extends Analytics {
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        private FailingAnalytics() {
+            super("http://127.0.0.1:1/", "account", "key");
+        }
+
+        @Override
+        public String publishEvents( Schema schema, List<Map<String,String>> data ) throws IOException {
+            attempts.incrementAndGet();
+            throw new IOException("connection refused");
+        }
+    }
+
+    //rejects the first batch with a 400 and takes everything after it, spooled batches are always rejected
+    private static class RejectingAnalytics extends Analytics {
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        private RejectingAnalytics() {
+            super("http://127.0.0.1:1/", "account", "key");
+        }
+
+        @Override
+        public String publishEvents( Schema schema, List<Map<String,String>> data ) throws IOException {
+            if( attempts.incrementAndGet() == 1 ) throw new AnalyticsRequestException("rejected", 400, "{}");
+            return "";
+        }
+
+        @Override
+        public String publishEvents( Schema schema, byte[] events, int retries ) throws IOException {
+            attempts.incrementAndGet();
+            throw new AnalyticsRequestException("rejected", 400, "{}");
+        }
+    }
+
+    private static Schema schema() {
+        Schema schema = new Schema("test");
+        schema.schema.put("value", "integer");
+        return schema;
+    }
+
+    private static void await( LongSupplier value, long expected ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while( value.getAsLong() < expected && System.currentTimeMillis() < deadline ) Thread.sleep(10);
+        assertEquals(expected, value.getAsLong());
+    }
+
+    @Test
+    public void batchesAfterAFailureGoStraightToTheSpool() throws Exception {
+        FailingAnalytics analytics = new FailingAnalytics();
+        AnalyticsPublisher publisher = new AnalyticsPublisher(analytics, 100, 1, 10);
+        try {
+            publisher.setSpool(new EventSpool(folder.getRoot(), 1024*1024, 4096, 60000), 2);
+            Schema schema = new Schema("test");
+            schema.schema.put("value", "integer");
+            publisher.publish(schema, Collections.singletonMap("value", "1"));
+            await(publisher::getSpooled, 1);
+            for( int i = 2; i <= 5; i++ ) publisher.publish(schema, Collections.singletonMap("value", Integer.toString(i)));
+            await(publisher::getSpooled, 5);
+            assertEquals(1, analytics.attempts.get());
+            assertEquals(0, publisher.getFailed());
+        } finally {
+            publisher.close();
+        }
+    }
+
+    @Test
+    public void withoutASpoolEveryBatchIsTriedAndCountedAsFailed() throws Exception {
+        FailingAnalytics analytics = new FailingAnalytics();
+        AnalyticsPublisher publisher = new AnalyticsPublisher(analytics, 100, 1, 10);
+        try {
+            Schema schema = new Schema("test");
+            schema.schema.put("value", "integer");
+            for( int i = 1; i <= 3; i++ ) publisher.publish(schema, Collections.singletonMap("value", Integer.toString(i)));
+            await(publisher::getFailed, 3);
+            assertEquals(3, analytics.attempts.get());
+        } finally {
+            publisher.close();
+        }
+    }
+
+    @Test
+    public void aRejectedBatchIsNotSpooledAndPublishingCarriesOn() throws Exception {
+        RejectingAnalytics analytics = new RejectingAnalytics();
+        AnalyticsPublisher publisher = new AnalyticsPublisher(analytics, 100, 1, 10);
+        try {
+            publisher.setSpool(new EventSpool(folder.getRoot(), 1024*1024, 4096, 60000), 2);
+            publisher.publish(schema(), Collections.singletonMap("value", "1"));
+            await(publisher::getFailed, 1);
+            for( int i = 2; i <= 5; i++ ) publisher.publish(schema(), Collections.singletonMap("value", Integer.toString(i)));
+            await(publisher::getPublished, 4);
+            assertEquals(0, publisher.getSpooled());
+            assertEquals(5, analytics.attempts.get());
+        } finally {
+            publisher.close();
+        }
+    }
+
+    @Test
+    public void aRejectedSpooledBatchIsDropped() throws Exception {
+        EventSpool spool = new EventSpool(folder.getRoot(), 1024*1024, 4096, 60000);
+        spool.append(schema(), "[{\"value\": 1}, {\"value\": 2}]".getBytes(StandardCharsets.UTF_8));
+        RejectingAnalytics analytics = new RejectingAnalytics();
+        AnalyticsPublisher publisher = new AnalyticsPublisher(analytics, 100, 1, 10);
+        try {
+            publisher.setSpool(spool, 2);
+            await(publisher::getFailed, 2);
+            assertEquals(false, spool.hasPending());
+            assertEquals(0, publisher.getReplayed());
+            assertEquals(1, analytics.attempts.get());
+        } finally {
+            publisher.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.cisco.josouthe.analytics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AnalyticsTest {
+    private HttpServer server;
+    private Analytics analytics;
+    private final ConcurrentLinkedQueue<Integer> publishStatus = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger publishRequests = new AtomicInteger();
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/events/schema/test", exchange -> reply(exchange, 200, "{\"schema\": {\"value\": \"integer\"}}"));
+        server.createContext("/events/publish/test", exchange -> {
+            publishRequests.incrementAndGet();
+            Integer status = publishStatus.poll();
+            reply(exchange, status == null ? 200 : status, status == null || status < 300 ? "" : "{\"statusCode\": "+ status +", \"message\": \"no\"}");
+        });
+        server.start();
+        analytics = new Analytics("http://127.0.0.1:"+ server.getAddress().getPort(), "account", "key");
+        analytics.setMaxRetries(2);
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static void reply( com.sun.net.httpserver.HttpExchange exchange, int status, String body ) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getRequestBody().close();
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Schema schema() {
+        Schema schema = new Schema("test");
+        schema.schema.put("value", "integer");
+        return schema;
+    }
+
+    private static Map<String,String> event() {
+        return Collections.singletonMap("value", "1");
+    }
+
+    @Test
+    public void publishSucceedsOn2xx() throws Exception {
+        analytics.publishEvents(schema(), Collections.singletonList(event()));
+        assertEquals(1, publishRequests.get());
+    }
+
+    @Test
+    public void serverErrorsAreRetried() throws Exception {
+        publishStatus.add(503);
+        publishStatus.add(500);
+        analytics.publishEvents(schema(), Collections.singletonList(event()));
+        assertEquals(3, publishRequests.get());
+    }
+
+    @Test
+    public void clientErrorsFailWithoutRetries() throws Exception {
+        publishStatus.add(401);
+        try {
+            analytics.publishEvents(schema(), Collections.singletonList(event()));
+            fail("a 401 is not a successful publish");
+        } catch (AnalyticsRequestException rejected) {
+            assertEquals(401, rejected.statusCode);
+        }
+        assertEquals(1, publishRequests.get());
+    }
+
+    @Test
+    public void schemaErrorIsRetriedOnceAfterCheckingTheSchema() throws Exception {
+        publishStatus.add(404);
+        analytics.publishEvents(schema(), Collections.singletonList(event()));
+        assertEquals(2, publishRequests.get());
+    }
+}
@@ -0,0 +1,151 @@
+package com.cisco.josouthe.analytics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventSpoolTest {
+    private static final long MB = 1024*1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Schema schema( String name ) {
+        Schema schema = new Schema(name);
+        schema.schema.put("value", "integer");
+        return schema;
+    }
+
+    private static byte[] events( int i ) {
+        return ("[{\"value\":"+ i +"}]").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertNext( EventSpool spool, int i ) throws IOException {
+        EventSpool.Record record = spool.peek();
+        assertNotNull("record "+ i, record);
+        assertEquals("s"+ i, record.schema.name);
+        assertEquals("integer", record.schema.schema.get("value"));
+        assertEquals(new String(events(i), StandardCharsets.UTF_8), new String(record.events, StandardCharsets.UTF_8));
+        spool.commit(record);
+    }
+
+    private File[] segments( File directory ) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    public void replaysOldestFirst() throws IOException {
+        EventSpool spool = new EventSpool(folder.getRoot(), MB, 4096, 60000);
+        for( int i = 0; i < 3; i++ ) spool.append(schema("s"+ i), events(i));
+        for( int i = 0; i < 3; i++ ) assertNext(spool, i);
+        assertNull(spool.peek());
+        spool.append(schema("s3"), events(3));
+        assertNext(spool, 3);
+    }
+
+    @Test
+    public void peekReturnsTheSameRecordUntilCommitted() throws IOException {
+        EventSpool spool = new EventSpool(folder.getRoot(), MB, 4096, 60000);
+        spool.append(schema("s0"), events(0));
+        spool.append(schema("s1"), events(1));
+        EventSpool.Record record = spool.peek();
+        assertTrue(record == spool.peek());
+        assertNext(spool, 0);
+        assertNext(spool, 1);
+    }
+
+    @Test
+    public void reopenedSpoolContinuesAtTheCursor() throws IOException {
+        EventSpool spool = new EventSpool(folder.getRoot(), MB, 4096, 60000);
+        for( int i = 0; i < 3; i++ ) spool.append(schema("s"+ i), events(i));
+        assertNext(spool, 0);
+
+        EventSpool reopened = new EventSpool(folder.getRoot(), MB, 4096, 60000);
+        assertNext(reopened, 1);
+        reopened.append(schema("s3"), events(3));
+        assertNext(reopened, 2);
+        assertNext(reopened, 3);
+        assertNull(reopened.peek());
+    }
+
+    @Test
+    public void truncatedSegmentRecoversAfterTheLastCompleteRecord() throws IOException {
+        EventSpool spool = new EventSpool(folder.getRoot(), MB, 4096, 60000);
+        spool.append(schema("s0"), events(0));
+        spool.append(schema("s1"), events(1));
+        File segment = segments(folder.getRoot())[0];
+        long complete = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(complete - 5); //a crash in the middle of writing s1
+        }
+
+        EventSpool reopened = new EventSpool(folder.getRoot(), MB, 4096, 60000);
+        assertNext(reopened, 0);
+        assertNull(reopened.peek());
+        //the torn record is cut off and the next append takes its place
+        reopened.append(schema("s2"), events(2));
+        assertNext(reopened, 2);
+        assertNull(reopened.peek());
+    }
+
+    @Test
+    public void corruptRecordEndsTheSegment() throws IOException {
+        EventSpool spool = new EventSpool(folder.getRoot(), MB, 4096, 60000);
+        spool.append(schema("s0"), events(0));
+        File segment = segments(folder.getRoot())[0];
+        long first = segment.length();
+        spool.append(schema("s1"), events(1));
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(segment.length() - 2);
+            file.write('x');
+        }
+
+        EventSpool reopened = new EventSpool(folder.getRoot(), MB, 4096, 60000);
+        assertEquals(first, segment.length());
+        assertNext(reopened, 0);
+        assertNull(reopened.peek());
+    }
+
+    @Test
+    public void replayedSegmentsAreDeleted() throws IOException {
+        EventSpool spool = new EventSpool(folder.getRoot(), MB, 64, 60000);
+        for( int i = 0; i < 4; i++ ) spool.append(schema("s"+ i), events(i));
+        assertEquals(4, segments(folder.getRoot()).length);
+        for( int i = 0; i < 4; i++ ) assertNext(spool, i);
+        assertNull(spool.peek());
+        //only the segment still being written is kept
+        assertEquals(1, segments(folder.getRoot()).length);
+        assertEquals(spool.getSize(), segments(folder.getRoot())[0].length());
+    }
+
+    @Test
+    public void oldestSegmentsAreDroppedOverMaxBytes() throws IOException {
+        EventSpool spool = new EventSpool(folder.getRoot(), 200, 64, 60000);
+        for( int i = 0; i < 6; i++ ) spool.append(schema("s"+ i), events(i));
+        assertTrue(spool.getSize() <= 200);
+        assertTrue(spool.getDroppedSegments() > 0);
+        EventSpool.Record record = spool.peek();
+        assertFalse("s0".equals(record.schema.name));
+        assertEquals(spool.getSize(), totalSize(segments(folder.getRoot())));
+    }
+
+    private static long totalSize( File[] files ) {
+        long size = 0;
+        for( File file : files ) size += file.length();
+        return size;
+    }
+}
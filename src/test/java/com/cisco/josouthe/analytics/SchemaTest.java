@@ -0,0 +1,63 @@
+package com.cisco.josouthe.analytics;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SchemaTest {
+
+    private static Schema schema() {
+        Schema schema = new Schema("test");
+        schema.schema.put("count", "integer");
+        schema.schema.put("load", "float");
+        schema.schema.put("time", "date");
+        schema.schema.put("detail", "object");
+        schema.schema.put("name", "string");
+        return schema;
+    }
+
+    private static JsonObject write( String field, String value ) throws Exception {
+        Map<String,String> event = new LinkedHashMap<>();
+        event.put(field, value);
+        return JsonParser.parseString(schema().getJSON(event)).getAsJsonObject();
+    }
+
+    @Test
+    public void numbersAreWrittenAsNumbers() throws Exception {
+        assertEquals(42, write("count", "42").get("count").getAsLong());
+        assertEquals(-0.52, write("load", "-0.52").get("load").getAsDouble(), 0);
+        assertEquals(100000, write("load", "1e5").get("load").getAsDouble(), 0);
+        assertEquals(1700000000000L, write("time", "1700000000000").get("time").getAsLong());
+    }
+
+    @Test
+    public void malformedNumbersAreNull() throws Exception {
+        for( String value : new String[] { "1-2", ".", "e5", "1e", "--", "1.2.3", "", "NaN", "12abc" } ) {
+            assertTrue(value, write("count", value).get("count").isJsonNull());
+            assertTrue(value, write("load", value).get("load").isJsonNull());
+        }
+    }
+
+    @Test
+    public void datesThatAreNotNumbersAreStrings() throws Exception {
+        assertEquals("2024-01-01T00:00:00Z", write("time", "2024-01-01T00:00:00Z").get("time").getAsString());
+    }
+
+    @Test
+    public void objectsAreValidatedJson() throws Exception {
+        assertEquals(3, write("detail", "{\"a\": [1, 2, 3]}").getAsJsonObject("detail").getAsJsonArray("a").size());
+        assertTrue(write("detail", "{\"a\": ").get("detail").isJsonNull());
+        assertTrue(write("detail", "{} trailing").get("detail").isJsonNull());
+    }
+
+    @Test
+    public void stringsAreEscaped() throws Exception {
+        assertEquals("a \"quoted\" name", write("name", "a \"quoted\" name").get("name").getAsString());
+    }
+}